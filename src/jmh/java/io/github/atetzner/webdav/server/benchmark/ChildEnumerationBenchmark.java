@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.MiltonFileResource;
+import io.github.atetzner.webdav.server.MiltonFolderResource;
+import io.github.atetzner.webdav.server.MiltonWebDAVResourceFactory;
+import io.milton.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to enumerate the children of folders of different sizes, as done for a {@code PROPFIND} with {@code Depth: 1},
+ * including the properties milton asks every child for, and to render the first page of the HTML listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ChildEnumerationBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int children;
+
+    private Path root;
+    private MiltonWebDAVResourceFactory resourceFactory;
+    private MiltonFolderResource folder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        Fixtures.createFlatFolder(root.resolve("folder"), children);
+        resourceFactory = new MiltonWebDAVResourceFactory(root.toFile(), Collections.<String, String>emptyMap());
+        folder = new MiltonFolderResource(root.resolve("folder").toFile(), resourceFactory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resourceFactory.close();
+        Fixtures.delete(root);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCaches() {
+        resourceFactory.getAttributeCache().clear();
+        resourceFactory.getListingRenderer().clear();
+    }
+
+    @Benchmark
+    public void getChildren(Blackhole blackhole) throws Exception {
+        List<? extends Resource> resources = folder.getChildren();
+        for (Resource resource : resources) {
+            blackhole.consume(resource.getModifiedDate());
+            if (resource instanceof MiltonFolderResource) {
+                blackhole.consume(resource.getName());
+            } else {
+                MiltonFileResource file = (MiltonFileResource) resource;
+                blackhole.consume(file.getContentLength());
+                blackhole.consume(file.getContentType(null));
+            }
+        }
+    }
+
+    @Benchmark
+    public void renderListing() throws Exception {
+        folder.sendContent(OutputStream.nullOutputStream(), null, Collections.<String, String>emptyMap(), null);
+    }
+}
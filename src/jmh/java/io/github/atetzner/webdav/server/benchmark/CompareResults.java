@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with {@code -rf csv}, e.g. a stored baseline with the results of the current
+ * run, and prints the change of the score of every benchmark and parameter combination present in both.
+ */
+public final class CompareResults {
+
+    private CompareResults() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults <baseline.csv> <results.csv>");
+            System.exit(2);
+        }
+        Path baselineFile = Paths.get(args[0]);
+        if (!Files.exists(baselineFile)) {
+            System.err.println("Baseline " + baselineFile + " does not exist; store the results of a run there first");
+            System.exit(1);
+        }
+        Map<String, Result> baseline = read(baselineFile);
+        Map<String, Result> current = read(Paths.get(args[1]));
+
+        System.out.printf(Locale.ROOT, "%-90s %15s %15s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            Result after = entry.getValue();
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-90s %15s %15.3f %9s%n", entry.getKey(), "-", after.score, "new");
+                continue;
+            }
+            double change = (after.score - before.score) / before.score * 100;
+            // lower is better for the time based modes, higher for throughput
+            boolean improved = after.throughput ? change > 0 : change < 0;
+            System.out.printf(Locale.ROOT, "%-90s %15.3f %15.3f %+8.1f%% %s%n", entry.getKey(), before.score,
+                    after.score, change, Math.abs(change) < after.errorPercent() ? "" : improved ? "better" : "worse");
+        }
+    }
+
+    private static Map<String, Result> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (lines.isEmpty()) {
+            return results;
+        }
+        List<String> header = parseLine(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> values = parseLine(line);
+            StringBuilder key = new StringBuilder(values.get(0));
+            for (int i = 7; i < values.size() && i < header.size(); i++) {
+                key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(values.get(i));
+            }
+            Result result = new Result();
+            result.throughput = "thrpt".equals(values.get(1));
+            result.score = parseNumber(values.get(4));
+            result.error = parseNumber(values.get(5));
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    private static double parseNumber(String value) {
+        if (value.isEmpty() || "NaN".equals(value)) {
+            return Double.NaN;
+        }
+        return Double.parseDouble(value.replace(',', '.'));
+    }
+
+    private static List<String> parseLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /**
+     * The score of one benchmark and parameter combination.
+     */
+    private static final class Result {
+
+        private boolean throughput;
+        private double score;
+        private double error;
+
+        private double errorPercent() {
+            return Double.isNaN(error) ? 0 : error / score * 100;
+        }
+    }
+}
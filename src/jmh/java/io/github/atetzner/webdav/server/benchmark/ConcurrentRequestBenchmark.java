@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.MiltonWebDAVFileServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request rate of many concurrent clients against an in-process server, comparing platform with virtual request
+ * threads and HTTP/1.1 with HTTP/2 over cleartext (h2c), where all requests of the client share one connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class ConcurrentRequestBenchmark {
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"HTTP_1_1", "HTTP_2"})
+    public HttpClient.Version version;
+
+    private Path root;
+    private MiltonWebDAVFileServer server;
+    private ExecutorService clientExecutor;
+    private HttpClient client;
+    private URI fileUri;
+    private URI folderUri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        Fixtures.createFile(root.resolve("small.bin"), 16 * 1024);
+        Fixtures.createFlatFolder(root.resolve("folder"), 100);
+
+        server = Fixtures.startServer(root, configured -> {
+            configured.setVirtualThreads(virtualThreads);
+            configured.getConnectorConfiguration().setHttp2Enabled(version == HttpClient.Version.HTTP_2);
+        });
+        clientExecutor = Executors.newCachedThreadPool();
+        client = HttpClient.newBuilder().version(version).executor(clientExecutor).build();
+        fileUri = URI.create(Fixtures.url(server, "/small.bin"));
+        folderUri = URI.create(Fixtures.url(server, "/folder/"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        clientExecutor.shutdownNow();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        return client.send(HttpRequest.newBuilder(fileUri).build(), HttpResponse.BodyHandlers.discarding())
+                .statusCode();
+    }
+
+    @Benchmark
+    public int propfind() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(folderUri)
+                .method("PROPFIND", HttpRequest.BodyPublishers.noBody())
+                .header("Depth", "1")
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.FileContentTransfer;
+import io.github.atetzner.webdav.server.MiltonWebDAVFileServer;
+import io.github.atetzner.webdav.server.MiltonWebDAVResourceFactory;
+import io.milton.http.Range;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of sending file content, once directly through {@link FileContentTransfer} into a stream and once as
+ * full and ranged {@code GET} through an in-process server, which uses the memory-mapped path for jetty's output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileContentTransferBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    private Path root;
+    private File file;
+    private FileContentTransfer transfer;
+    private MiltonWebDAVFileServer server;
+    private HttpClient client;
+    private URI uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        file = root.resolve("content.bin").toFile();
+        Fixtures.createFile(file.toPath(), fileSize);
+        transfer = new FileContentTransfer(new ArrayByteBufferPool(), MiltonWebDAVResourceFactory.DEFAULT_BUFFER_SIZE);
+
+        server = Fixtures.startServer(root, configured -> {
+        });
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        uri = URI.create(Fixtures.url(server, "/content.bin"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public long sendFull() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        transfer.send(file, null, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long sendRange() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        transfer.send(file, new Range(fileSize / 4, fileSize / 2), out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long getFull() throws Exception {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri).build(),
+                HttpResponse.BodyHandlers.discarding());
+        return response.statusCode();
+    }
+
+    @Benchmark
+    public long getRange() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Range", "bytes=" + fileSize / 4 + "-" + fileSize / 2)
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    /**
+     * Discards everything written, counting the bytes.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.MiltonWebDAVFileServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Generates the folder trees the benchmarks work on and starts in-process servers serving them.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a new, empty temporary folder
+     * @throws IOException if creating the folder fails
+     */
+    public static Path createRoot() throws IOException {
+        return Files.createTempDirectory("webdav-benchmark");
+    }
+
+    /**
+     * Creates a file of random content.
+     *
+     * @param file the file to create
+     * @param size the size of the file in bytes
+     * @throws IOException if creating the file fails
+     */
+    public static void createFile(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * Creates a folder with the given number of small files.
+     *
+     * @param folder the folder to create
+     * @param files  the number of files
+     * @throws IOException if creating the folder fails
+     */
+    public static void createFlatFolder(Path folder, int files) throws IOException {
+        Files.createDirectories(folder);
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < files; i++) {
+            Files.write(folder.resolve(String.format("file-%07d.txt", i)), content);
+        }
+    }
+
+    /**
+     * Creates a chain of nested folders.
+     *
+     * @param root  the folder to create the chain in
+     * @param depth the number of nested folders
+     * @return the path of the innermost folder relative to the root, using {@code /} as separator
+     * @throws IOException if creating the folders fails
+     */
+    public static String createDeepPath(Path root, int depth) throws IOException {
+        StringBuilder relativePath = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            relativePath.append("/level-").append(i);
+        }
+        Files.createDirectories(root.resolve(relativePath.substring(Math.min(1, relativePath.length()))));
+        return relativePath.toString();
+    }
+
+    /**
+     * Creates a tree in which every folder has the given number of sub folders and files.
+     *
+     * @param folder          the root of the tree to create
+     * @param depth           the number of folder levels below the root
+     * @param foldersPerLevel the number of sub folders of every folder above the lowest level
+     * @param filesPerFolder  the number of files in every folder
+     * @param fileSize        the size of every file in bytes
+     * @throws IOException if creating the tree fails
+     */
+    public static void createTree(Path folder, int depth, int foldersPerLevel, int filesPerFolder, int fileSize)
+            throws IOException {
+        Files.createDirectories(folder);
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        for (int i = 0; i < filesPerFolder; i++) {
+            Files.write(folder.resolve("file-" + i + ".bin"), content);
+        }
+        if (depth > 0) {
+            for (int i = 0; i < foldersPerLevel; i++) {
+                createTree(folder.resolve("folder-" + i), depth - 1, foldersPerLevel, filesPerFolder, fileSize);
+            }
+        }
+    }
+
+    /**
+     * Deletes a folder with all its content, e.g. the fixture of a benchmark.
+     *
+     * @param folder the folder to delete; nothing is done if it does not exist
+     * @throws IOException if deleting fails
+     */
+    public static void delete(Path folder) throws IOException {
+        if (folder == null || !Files.exists(folder)) {
+            return;
+        }
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param root       the folder to serve
+     * @param configurer configures the server before it is started
+     * @return the started server
+     * @throws Exception if starting the server fails
+     */
+    public static MiltonWebDAVFileServer startServer(Path root, Consumer<MiltonWebDAVFileServer> configurer)
+            throws Exception {
+        MiltonWebDAVFileServer server = new MiltonWebDAVFileServer(root.toFile());
+        server.setPort(freePort());
+        configurer.accept(server);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @param server a started server
+     * @param path   the path to request, starting with {@code /}
+     * @return the URL of the path on the server
+     */
+    public static String url(MiltonWebDAVFileServer server, String path) {
+        return "http://localhost:" + server.getPort() + path;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.MiltonFileResource;
+import io.github.atetzner.webdav.server.MiltonWebDAVResourceFactory;
+import io.github.atetzner.webdav.server.PathLockManager;
+import io.milton.http.LockInfo;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the {@link PathLockManager} with concurrent threads: every thread locks, refreshes and unlocks its own
+ * file, while checking the lock of a file, as done for every modifying request, runs against a shared locked file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class LockManagerBenchmark {
+
+    private static final LockTimeout TIMEOUT = new LockTimeout(60L);
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    private Path root;
+    private MiltonWebDAVResourceFactory resourceFactory;
+    private PathLockManager lockManager;
+    private MiltonFileResource shared;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        Fixtures.createFlatFolder(root, 64);
+        resourceFactory = new MiltonWebDAVResourceFactory(root.toFile(), Collections.<String, String>emptyMap());
+        lockManager = resourceFactory.getLockManager();
+        shared = resource(0);
+        lockManager.lock(TIMEOUT, newLockInfo(), shared);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resourceFactory.close();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public String lockRefreshUnlock(PerThread perThread) throws Exception {
+        LockResult result = lockManager.lock(TIMEOUT, newLockInfo(), perThread.resource);
+        String tokenId = result.getLockToken().tokenId;
+        lockManager.refresh(tokenId, TIMEOUT, perThread.resource);
+        lockManager.unlock(tokenId, perThread.resource);
+        return tokenId;
+    }
+
+    @Benchmark
+    public LockToken checkLocked() {
+        return lockManager.getCurrentToken(shared);
+    }
+
+    @Benchmark
+    public LockToken checkUnlocked(PerThread perThread) {
+        return lockManager.getCurrentToken(perThread.resource);
+    }
+
+    private MiltonFileResource resource(int index) {
+        return new MiltonFileResource(root.resolve(String.format("file-%07d.txt", index)).toFile(), resourceFactory);
+    }
+
+    private static LockInfo newLockInfo() {
+        return new LockInfo(LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "benchmark",
+                LockInfo.LockDepth.ZERO);
+    }
+
+    /**
+     * The file locked by one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class PerThread {
+
+        private MiltonFileResource resource;
+
+        @Setup(Level.Trial)
+        public void setUp(LockManagerBenchmark benchmark) {
+            resource = benchmark.resource(1 + benchmark.threadCounter.getAndIncrement() % 63);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.MiltonWebDAVResourceFactory;
+import io.milton.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link MiltonWebDAVResourceFactory#getResource(String, String)} by the depth of the resolved path, with the
+ * attributes in the cache and read from the file system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceResolutionBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    private Path root;
+    private String path;
+    private MiltonWebDAVResourceFactory resourceFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        path = Fixtures.createDeepPath(root, depth);
+        resourceFactory = new MiltonWebDAVResourceFactory(root.toFile(), Collections.<String, String>emptyMap());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resourceFactory.close();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public Resource cached() throws Exception {
+        return resourceFactory.getResource("localhost", path);
+    }
+
+    @Benchmark
+    public Resource uncached() throws Exception {
+        resourceFactory.getAttributeCache().clear();
+        return resourceFactory.getResource("localhost", path);
+    }
+}
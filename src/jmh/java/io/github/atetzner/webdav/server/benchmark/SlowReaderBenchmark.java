@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.FileContentTransfer;
+import io.github.atetzner.webdav.server.MiltonWebDAVFileServer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a small {@code GET} while many clients download a large file without reading from their sockets, against
+ * a server with a small thread pool. Sending synchronously, every slow reader pins a request thread until the idle
+ * timeout and the probes time out; sending asynchronously the number of threads blocked in
+ * {@link FileContentTransfer}, reported as the {@code blockedThreads} counter, stays at zero.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SlowReaderBenchmark {
+
+    private static final int SLOW_READERS = 64;
+
+    @Param({"-1", "1048576"})
+    public long asyncSendThreshold;
+
+    private Path root;
+    private MiltonWebDAVFileServer server;
+    private final List<Socket> slowReaders = new ArrayList<>();
+    private HttpClient client;
+    private URI probeUri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        Fixtures.createFile(root.resolve("large.bin"), 64L * 1024 * 1024);
+        Fixtures.createFile(root.resolve("small.bin"), 1024);
+
+        server = Fixtures.startServer(root, configured -> {
+            configured.setAsyncSendThreshold(asyncSendThreshold);
+            configured.getConnectorConfiguration().setMinThreads(8);
+            configured.getConnectorConfiguration().setMaxThreads(24);
+        });
+
+        byte[] request = "GET /large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < SLOW_READERS; i++) {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", server.getPort()));
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            slowReaders.add(socket);
+        }
+        // let the server fill the socket buffers of the slow readers
+        Thread.sleep(1000);
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        probeUri = URI.create(Fixtures.url(server, "/small.bin"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Socket socket : slowReaders) {
+            socket.close();
+        }
+        server.stop();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public int probe(Probes probes) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(probeUri).timeout(Duration.ofSeconds(2)).build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (HttpTimeoutException e) {
+            probes.timeouts++;
+            return -1;
+        }
+    }
+
+    /**
+     * Counts the probes, that did not get an answer in time, and the threads blocked sending to the slow readers at the
+     * end of the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Probes {
+
+        public long timeouts;
+        public long blockedThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            timeouts = 0;
+            blockedThreads = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void countBlockedThreads() {
+            blockedThreads = Thread.getAllStackTraces().values().stream()
+                    .filter(stack -> Arrays.stream(stack)
+                            .anyMatch(frame -> frame.getClassName().equals(FileContentTransfer.class.getName())))
+                    .count();
+        }
+    }
+}
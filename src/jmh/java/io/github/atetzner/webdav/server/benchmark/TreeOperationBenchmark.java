@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.FileCopier;
+import io.github.atetzner.webdav.server.ParallelTreeEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to copy and delete a deep, narrow and a shallow, wide tree with the {@link ParallelTreeEngine}, by parallelism.
+ * Every invocation works on a freshly generated tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TreeOperationBenchmark {
+
+    /**
+     * {@code deep}: 12 levels of 2 sub folders with 2 files each; {@code wide}: 2 levels of 100 sub folders with 5
+     * files each.
+     */
+    @Param({"deep", "wide"})
+    public String shape;
+
+    @Param({"1", "8"})
+    public int parallelism;
+
+    private Path root;
+    private Path source;
+    private Path target;
+    private ParallelTreeEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        engine = new ParallelTreeEngine(parallelism, new FileCopier(-1));
+    }
+
+    @Setup(Level.Invocation)
+    public void createTree() throws Exception {
+        source = root.resolve("source");
+        target = root.resolve("target");
+        Fixtures.delete(source);
+        Fixtures.delete(target);
+        if ("deep".equals(shape)) {
+            Fixtures.createTree(source, 12, 2, 2, 4096);
+        } else {
+            Fixtures.createTree(source, 2, 100, 5, 4096);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        engine.close();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public void copy() throws Exception {
+        engine.copy(source.toFile(), target.toFile());
+    }
+
+    @Benchmark
+    public void delete() throws Exception {
+        engine.delete(source.toFile());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server.benchmark;
+
+import io.github.atetzner.webdav.server.AtomicFileWriter;
+import io.github.atetzner.webdav.server.MiltonWebDAVFileServer;
+import io.github.atetzner.webdav.server.MiltonWebDAVResourceFactory;
+import io.github.atetzner.webdav.server.UploadDurability;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of an upload per {@link UploadDurability} level, once directly through the {@link AtomicFileWriter} and once as
+ * {@code PUT} through an in-process server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadDurabilityBenchmark {
+
+    @Param({"NONE", "FILE", "FILE_AND_FOLDER"})
+    public UploadDurability durability;
+
+    @Param({"4096", "1048576"})
+    public int fileSize;
+
+    private Path root;
+    private File target;
+    private byte[] content;
+    private AtomicFileWriter writer;
+    private MiltonWebDAVFileServer server;
+    private HttpClient client;
+    private URI uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Fixtures.createRoot();
+        target = root.resolve("direct.bin").toFile();
+        content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        writer = new AtomicFileWriter(durability, new ArrayByteBufferPool(),
+                MiltonWebDAVResourceFactory.DEFAULT_BUFFER_SIZE);
+
+        server = Fixtures.startServer(root, configured -> configured.setUploadDurability(durability));
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        uri = URI.create(Fixtures.url(server, "/uploaded.bin"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        writer.write(target, new ByteArrayInputStream(content), (long) content.length);
+        return target.length();
+    }
+
+    @Benchmark
+    public int put() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(content))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.SecurityManager;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.IteratingCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A jetty handler in front of the {@link MiltonHandler} limiting the number of concurrently processed requests, overall
+ * and per client, and the bandwidth of every client, as configured by a {@link QosConfiguration}. A client is the user
+ * of the request's basic authentication, if the credentials have already been verified, otherwise the remote address.
+ * So unverified user names neither escape the limits nor use up the limits of other users.
+ * <p>
+ * Requests over a limit are answered with {@code 503} and a {@code Retry-After} header right away instead of being
+ * queued, so the latency of admitted requests stays bounded under overload. A part of the overall limit can be
+ * reserved for cheap metadata requests ({@code OPTIONS}, {@code PROPFIND}, {@code HEAD}), so clients can still browse
+ * while bulk transfers use up the rest.
+ * <p>
+ * Downloads are limited by delaying the writes to the connection on a scheduler, so asynchronously sent content (see
+ * {@link AsyncFileSender}) does not hold a thread while it waits. Uploads are limited by pausing the reads of the
+ * request body. Milton reads request bodies with blocking reads, so a throttled upload holds its thread while it
+ * pauses; throttled uploads are therefore counted against their own limit,
+ * {@link QosConfiguration#getMaxThrottledUploads()}, so slow clients cannot use up the connector's thread pool.
+ */
+public class AdmissionControlHandler extends HandlerWrapper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControlHandler.class);
+
+    private static final Set<String> METADATA_METHODS = new HashSet<>(Arrays.asList("OPTIONS", "PROPFIND", "HEAD"));
+
+    /**
+     * Maximum number of bytes written or read at once, so a limited client gets a steady stream.
+     */
+    private static final int SLICE_SIZE = 16 * 1024;
+
+    /**
+     * Clients without requests for this long are forgotten, together with their token buckets.
+     */
+    private static final long IDLE_CLIENT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final QosConfiguration configuration;
+    private final SecurityManager securityManager;
+    private final ServerMetrics metrics;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger throttledUploads = new AtomicInteger();
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * @param configuration   the limits to apply
+     * @param securityManager the server's security manager to identify users by or {@code null} if authentication is
+     *                        disabled
+     * @param metrics         the metrics to count rejected requests in
+     */
+    public AdmissionControlHandler(QosConfiguration configuration, SecurityManager securityManager,
+                                   ServerMetrics metrics) {
+        notNull(configuration, "'configuration' may not be null");
+        notNull(metrics, "'metrics' may not be null");
+        isTrue(configuration.getMetadataReservedRequests() >= 0
+                        && (configuration.getMaxRequests() < 0
+                        || configuration.getMetadataReservedRequests() < configuration.getMaxRequests()),
+                "'metadataReservedRequests' may not be negative and must be less than 'maxRequests'");
+        this.configuration = configuration;
+        this.securityManager = securityManager;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "webdav-qos");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::forgetIdleClients, 1, 1, TimeUnit.MINUTES);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        scheduler.shutdownNow();
+        clients.clear();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException, ServletException {
+        String clientKey = getClientKey(request);
+        Client client = admit(clientKey, METADATA_METHODS.contains(request.getMethod()));
+        if (client == null) {
+            reject(baseRequest, request, response, clientKey);
+            return;
+        }
+
+        boolean throttledUpload = client.upload != null && hasBody(request);
+        if (throttledUpload && !tryIncrement(throttledUploads, configuration.getMaxThrottledUploads())) {
+            new Release(clientKey, false).run();
+            reject(baseRequest, request, response, clientKey);
+            return;
+        }
+
+        Release release = new Release(clientKey, throttledUpload);
+        try {
+            if (client.download != null) {
+                HttpOutput out = baseRequest.getResponse().getHttpOutput();
+                out.setInterceptor(new ThrottlingInterceptor(client.download, out.getInterceptor()));
+            }
+            HttpServletRequest admittedRequest = throttledUpload ? new ThrottledRequest(request, client.upload)
+                    : request;
+            super.handle(target, baseRequest, admittedRequest, response);
+        } finally {
+            // asynchronously processed requests are released when they complete
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * @return the number of admitted requests in process
+     */
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    /**
+     * @return the number of admitted uploads limited by the upload rate in process
+     */
+    public int getThrottledUploads() {
+        return throttledUploads.get();
+    }
+
+    private void reject(Request baseRequest, HttpServletRequest request, HttpServletResponse response,
+                        String clientKey) {
+        LOGGER.debug("Rejecting {} request for {} of {}", request.getMethod(), request.getRequestURI(), clientKey);
+        metrics.requestRejected();
+        baseRequest.setHandled(true);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(configuration.getRetryAfterSeconds()));
+    }
+
+    private static boolean hasBody(HttpServletRequest request) {
+        return request.getContentLengthLong() > 0 || request.getHeader("Transfer-Encoding") != null;
+    }
+
+    private String getClientKey(HttpServletRequest request) {
+        String user = HttpRequests.getVerifiedUser(request, securityManager);
+        return user != null ? "user:" + user : "address:" + request.getRemoteAddr();
+    }
+
+    /**
+     * @return the client, if the request is admitted, otherwise {@code null}
+     */
+    private Client admit(String clientKey, boolean metadata) {
+        int maxRequests = configuration.getMaxRequests();
+        if (maxRequests >= 0 && !metadata) {
+            maxRequests -= configuration.getMetadataReservedRequests();
+        }
+        if (!tryIncrement(activeRequests, maxRequests)) {
+            return null;
+        }
+
+        boolean[] admitted = {false};
+        Client client = clients.compute(clientKey, (key, existing) -> {
+            Client current = existing != null ? existing : new Client(configuration);
+            current.lastUsed = System.nanoTime();
+            int maxRequestsPerClient = configuration.getMaxRequestsPerClient();
+            if (maxRequestsPerClient < 0 || current.activeRequests < maxRequestsPerClient) {
+                current.activeRequests++;
+                admitted[0] = true;
+            }
+            return current;
+        });
+        if (!admitted[0]) {
+            activeRequests.decrementAndGet();
+            return null;
+        }
+        return client;
+    }
+
+    private static boolean tryIncrement(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (limit >= 0 && current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void forgetIdleClients() {
+        long idleSince = System.nanoTime() - IDLE_CLIENT_NANOS;
+        for (String key : clients.keySet()) {
+            clients.computeIfPresent(key, (k, client) ->
+                    client.activeRequests == 0 && client.lastUsed - idleSince < 0 ? null : client);
+        }
+    }
+
+    /**
+     * The state of a client; {@link #activeRequests} and {@link #lastUsed} are only accessed in the compute methods
+     * of the client map.
+     */
+    private static final class Client {
+
+        private final TokenBucket download;
+        private final TokenBucket upload;
+        private int activeRequests = 0;
+        private long lastUsed;
+
+        private Client(QosConfiguration configuration) {
+            download = configuration.getDownloadRate() > 0 ? new TokenBucket(configuration.getDownloadRate()) : null;
+            upload = configuration.getUploadRate() > 0 ? new TokenBucket(configuration.getUploadRate()) : null;
+        }
+    }
+
+    /**
+     * Releases the slots of an admitted request once, either directly or when its asynchronous processing completes.
+     */
+    private final class Release implements Runnable, AsyncListener {
+
+        private final String clientKey;
+        private final boolean throttledUpload;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Release(String clientKey, boolean throttledUpload) {
+            this.clientKey = clientKey;
+            this.throttledUpload = throttledUpload;
+        }
+
+        @Override
+        public void run() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            clients.computeIfPresent(clientKey, (key, client) -> {
+                client.activeRequests--;
+                client.lastUsed = System.nanoTime();
+                return client;
+            });
+            activeRequests.decrementAndGet();
+            if (throttledUpload) {
+                throttledUploads.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // followed by onComplete
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // followed by onComplete
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Hands the response content to the next interceptor in slices, each delayed until the client's token bucket
+     * allows it.
+     */
+    private final class ThrottlingInterceptor implements HttpOutput.Interceptor {
+
+        private final TokenBucket bucket;
+        private final HttpOutput.Interceptor next;
+
+        private ThrottlingInterceptor(TokenBucket bucket, HttpOutput.Interceptor next) {
+            this.bucket = bucket;
+            this.next = next;
+        }
+
+        @Override
+        public void write(ByteBuffer content, boolean last, Callback callback) {
+            new SliceWriter(content, last, callback).iterate();
+        }
+
+        @Override
+        public HttpOutput.Interceptor getNextInterceptor() {
+            return next;
+        }
+
+        private final class SliceWriter extends IteratingCallback {
+
+            private final ByteBuffer content;
+            private final boolean last;
+            private final Callback callback;
+            private boolean written = false;
+
+            private SliceWriter(ByteBuffer content, boolean last, Callback callback) {
+                this.content = content;
+                this.last = last;
+                this.callback = callback;
+            }
+
+            @Override
+            protected Action process() {
+                if (written) {
+                    return Action.SUCCEEDED;
+                }
+
+                int length = Math.min(content == null ? 0 : content.remaining(), SLICE_SIZE);
+                ByteBuffer slice = content;
+                if (content != null) {
+                    slice = content.slice();
+                    slice.limit(length);
+                    content.position(content.position() + length);
+                }
+                written = content == null || !content.hasRemaining();
+                boolean lastSlice = last && written;
+
+                long delay = length == 0 ? 0 : bucket.reserve(length);
+                if (delay == 0) {
+                    next.write(slice, lastSlice, this);
+                } else {
+                    ByteBuffer delayed = slice;
+                    scheduler.schedule(() -> next.write(delayed, lastSlice, this), delay, TimeUnit.NANOSECONDS);
+                }
+                return Action.SCHEDULED;
+            }
+
+            @Override
+            protected void onCompleteSuccess() {
+                callback.succeeded();
+            }
+
+            @Override
+            protected void onCompleteFailure(Throwable cause) {
+                callback.failed(cause);
+            }
+
+            @Override
+            public InvocationType getInvocationType() {
+                return callback.getInvocationType();
+            }
+        }
+    }
+
+    /**
+     * Limits the rate the request body is read at.
+     */
+    private static final class ThrottledRequest extends HttpServletRequestWrapper {
+
+        private final TokenBucket bucket;
+        private ServletInputStream inputStream = null;
+
+        private ThrottledRequest(HttpServletRequest request, TokenBucket bucket) {
+            super(request);
+            this.bucket = bucket;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new ThrottledInputStream(super.getInputStream(), bucket);
+            }
+            return inputStream;
+        }
+    }
+
+    /**
+     * Pauses after every read until the client's token bucket covers the bytes read.
+     */
+    private static final class ThrottledInputStream extends ServletInputStream {
+
+        private final ServletInputStream in;
+        private final TokenBucket bucket;
+
+        private ThrottledInputStream(ServletInputStream in, TokenBucket bucket) {
+            this.in = in;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                pause(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, Math.min(len, SLICE_SIZE));
+            if (read > 0) {
+                pause(read);
+            }
+            return read;
+        }
+
+        private void pause(int bytes) throws InterruptedIOException {
+            long delay = bucket.reserve(bytes);
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while limiting the upload rate");
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            in.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
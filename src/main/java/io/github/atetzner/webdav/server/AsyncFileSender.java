@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.HttpOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a region of a file with non-blocking servlet I/O after the request has been processed, so no request thread
+ * waits while a slow client drains the socket. Jetty calls {@link #onWritePossible()} whenever the previous chunk has
+ * been written; the chunks are read into a pooled direct buffer, so they are not copied through the heap either, and
+ * are not memory mapped for the same reasons as in the {@link FileContentTransfer}. Content already in memory, e.g.
+ * from the {@link FileContentCache}, is sent the same way.
+ * <p>
+ * {@link FileContentTransfer} {@link #defer(File, long, long, HttpOutput, ByteBufferPool, int) defers} the region
+ * instead of writing it, if the {@link MiltonHandler} {@link #enable() enabled} deferring for the current thread; the
+ * handler then {@link #start(HttpServletRequest, Runnable) starts} the sender once milton has written the headers.
+ */
+public class AsyncFileSender implements WriteListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncFileSender.class);
+
+    /**
+     * Number of bytes of content already in memory handed to jetty per write.
+     */
+    private static final long CHUNK_SIZE = 1024L * 1024;
+
+    private static final ThreadLocal<Boolean> ENABLED = new ThreadLocal<>();
+    private static final ThreadLocal<AsyncFileSender> PENDING = new ThreadLocal<>();
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer content;
+    private final ByteBufferPool bufferPool;
+    private final int bufferSize;
+    private final HttpOutput out;
+    private ByteBuffer buffer = null;
+    private long position;
+    private long remaining;
+    private AsyncContext asyncContext;
+    private Runnable onComplete;
+    private boolean completed = false;
+
+    private AsyncFileSender(File file, FileChannel channel, ByteBuffer content, ByteBufferPool bufferPool,
+                            int bufferSize, long position, long count, HttpOutput out) {
+        this.file = file;
+        this.channel = channel;
+        this.content = content;
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+        this.position = position;
+        this.remaining = count;
+        this.out = out;
+    }
+
+    /**
+     * Allows deferring a file region on the current thread until {@link #disable()} or {@link #discard()} is called.
+     */
+    static void enable() {
+        discard();
+        ENABLED.set(Boolean.TRUE);
+    }
+
+    /**
+     * Ends deferring on the current thread.
+     *
+     * @return the sender for the region deferred meanwhile, which has to be {@link #start(HttpServletRequest,
+     * Runnable) started}, or {@code null} if nothing has been deferred
+     */
+    static AsyncFileSender disable() {
+        AsyncFileSender sender = PENDING.get();
+        PENDING.remove();
+        ENABLED.remove();
+        return sender;
+    }
+
+    /**
+     * Ends deferring on the current thread and drops a region deferred meanwhile, e.g. because processing the request
+     * failed.
+     */
+    static void discard() {
+        AsyncFileSender sender = disable();
+        if (sender != null) {
+            sender.closeChannel();
+        }
+    }
+
+    /**
+     * Defers sending a region of a file, if deferring is enabled on the current thread and the region is the whole
+     * response body.
+     *
+     * @param file       the file to send
+     * @param position   the position of the first byte to send
+     * @param count      the number of bytes to send
+     * @param out        the response stream to send the bytes to
+     * @param bufferPool the pool to take the buffer to read the file into from
+     * @param bufferSize the size of the buffer in bytes
+     * @return {@code true} if the region will be sent later, {@code false} if the caller has to send it
+     * @throws IOException if opening the file fails
+     */
+    static boolean defer(File file, long position, long count, HttpOutput out, ByteBufferPool bufferPool,
+                         int bufferSize) throws IOException {
+        if (!isDeferrable(out)) {
+            return false;
+        }
+        PENDING.set(new AsyncFileSender(file, FileChannel.open(file.toPath(), StandardOpenOption.READ), null,
+                bufferPool, bufferSize, position, count, out));
+        return true;
+    }
+
+    /**
+     * Defers sending content already in memory, if deferring is enabled on the current thread and the content is the
+     * whole response body.
+     *
+     * @param file    the file the content belongs to
+     * @param content the content to send, from its position to its limit; it must not be changed until it is sent
+     * @param out     the response stream to send the bytes to
+     * @return {@code true} if the content will be sent later, {@code false} if the caller has to send it
+     */
+    static boolean defer(File file, ByteBuffer content, HttpOutput out) {
+        if (!isDeferrable(out)) {
+            return false;
+        }
+        PENDING.set(new AsyncFileSender(file, null, content.slice(), null, 0, 0, content.remaining(), out));
+        return true;
+    }
+
+    /**
+     * A region can only be deferred if nothing has been written before, e.g. the boundaries of a multipart/byteranges
+     * response, as the deferred bytes are sent after everything written later. Once something has been written,
+     * deferring is disabled for the rest of the request.
+     */
+    private static boolean isDeferrable(HttpOutput out) {
+        if (ENABLED.get() == null || PENDING.get() != null) {
+            return false;
+        }
+        if (out.getWritten() > 0 || out.isClosed()) {
+            ENABLED.remove();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Switches the request to asynchronous mode, if not done yet, and starts sending. The request is completed when
+     * the region has been sent or sending failed.
+     *
+     * @param request    the request the region is sent for
+     * @param onComplete called when the request has been completed
+     */
+    void start(HttpServletRequest request, Runnable onComplete) {
+        this.onComplete = onComplete;
+        asyncContext = request.isAsyncStarted() ? request.getAsyncContext() : request.startAsync();
+        // stalled clients are dropped by the connector's idle timeout, which calls onError
+        asyncContext.setTimeout(0);
+        out.setWriteListener(this);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (remaining == 0) {
+                complete();
+                return;
+            }
+            ByteBuffer chunk = nextChunk();
+            position += chunk.remaining();
+            remaining -= chunk.remaining();
+            out.write(chunk);
+        }
+    }
+
+    private ByteBuffer nextChunk() throws IOException {
+        if (content != null) {
+            ByteBuffer chunk = content.duplicate();
+            chunk.limit((int) (position + Math.min(remaining, CHUNK_SIZE)));
+            chunk.position((int) position);
+            return chunk;
+        }
+
+        // jetty is done with the previous chunk once the output is ready again, so the buffer can be refilled
+        if (buffer == null) {
+            buffer = bufferPool.acquire(bufferSize, true);
+        }
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        if (channel.read(buffer, position) <= 0) {
+            throw new EOFException("File was truncated while sending its content");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOGGER.debug("Error sending {} asynchronously, {} bytes remaining", file, remaining, t);
+        complete();
+    }
+
+    private void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        closeChannel();
+        try {
+            asyncContext.complete();
+        } finally {
+            onComplete.run();
+        }
+    }
+
+    private void closeChannel() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Writes uploads to a temporary file in the target's folder and atomically renames it to the target afterwards.
+ * Concurrent readers therefore either see the old or the complete new content, and an aborted upload leaves the
+ * target untouched.
+ * <p>
+ * The temporary files have a fixed-length name with a prefix of their own, so they neither shorten the allowed target
+ * names much nor are confused with the files of users. They are no resources of the server: listings, the folder size
+ * index and the change journal skip them (see {@link #isTemporaryFile(Path)}). The startup walks of the folder size
+ * index and the change journal remove the files left behind by a crash (see
+ * {@link #deleteIfStale(Path, BasicFileAttributes)}).
+ */
+public class AtomicFileWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AtomicFileWriter.class);
+    private static final String TEMPORARY_PREFIX = ".webdav-upload-";
+    private static final Pattern TEMPORARY_NAME = Pattern.compile(Pattern.quote(TEMPORARY_PREFIX)
+            + "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    /**
+     * Temporary files last modified before the server started belong to uploads of a previous run.
+     */
+    private static final long STARTED_AT = System.currentTimeMillis();
+
+    private final UploadDurability durability;
+    private final ByteBufferPool bufferPool;
+    private final int bufferSize;
+
+    /**
+     * @param durability how durable the written files are when {@link #write(File, InputStream, Long)} returns
+     * @param bufferPool the pool to take copy buffers from
+     * @param bufferSize the size of the copy buffers in bytes
+     */
+    public AtomicFileWriter(UploadDurability durability, ByteBufferPool bufferPool, int bufferSize) {
+        this.durability = durability;
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+    }
+
+    public UploadDurability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @param path a file
+     * @return {@code true} if the file is a temporary file of an upload in progress or of an aborted one
+     */
+    public static boolean isTemporaryFile(Path path) {
+        Path name = path.getFileName();
+        return name != null && TEMPORARY_NAME.matcher(name.toString()).matches();
+    }
+
+    /**
+     * Deletes a temporary file, if it has been left behind by a previous run of the server. Temporary files of
+     * uploads in progress are kept, so this may be called while the server is running, e.g. while walking the tree.
+     *
+     * @param file       a {@link #isTemporaryFile(Path) temporary file}
+     * @param attributes the attributes of the file
+     */
+    static void deleteIfStale(Path file, BasicFileAttributes attributes) {
+        if (!attributes.isRegularFile() || attributes.lastModifiedTime().toMillis() >= STARTED_AT) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+            LOGGER.info("Deleted stale upload {}", file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete stale upload {}", file, e);
+        }
+    }
+
+    /**
+     * Writes the given content to the target file, replacing it if it already exists.
+     *
+     * @param target the file to write
+     * @param in     the new content of the file
+     * @param length the length of the content if known, otherwise {@code null}
+     * @throws IOException if writing the file fails or the content is shorter than the given length
+     */
+    public void write(File target, InputStream in, Long length) throws IOException {
+        Path targetPath = target.toPath();
+        Path folder = targetPath.toAbsolutePath().getParent();
+        Path tempPath = folder.resolve(TEMPORARY_PREFIX + UUID.randomUUID());
+
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                copyPermissions(targetPath, tempPath);
+                long written = copy(in, channel);
+                if (length != null && written != length) {
+                    throw new EOFException("Upload ended after " + written + " of " + length + " bytes");
+                }
+                if (durability != UploadDurability.NONE) {
+                    channel.force(true);
+                }
+            }
+
+            move(tempPath, targetPath);
+
+            if (durability == UploadDurability.FILE_AND_FOLDER) {
+                syncFolder(folder);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private long copy(InputStream in, FileChannel channel) throws IOException {
+        // the request body is only available as InputStream, which needs a heap buffer to read into
+        ByteBuffer buffer = bufferPool.acquire(bufferSize, false);
+        long position = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity())) >= 0) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return position;
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("File system does not support atomic moves, replacing {} non-atomically", target, e);
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        if (!Files.exists(from)) {
+            return;
+        }
+
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException | IOException e) {
+            LOGGER.debug("Could not copy permissions of {}", from, e);
+        }
+    }
+
+    private static void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on all platforms, e.g. Windows
+            LOGGER.debug("Could not sync folder {}", folder, e);
+        }
+    }
+}
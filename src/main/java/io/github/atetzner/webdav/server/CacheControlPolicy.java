@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decides the {@code max-age} in the {@code Cache-Control} header of the served resources. Rules map glob patterns,
+ * matched against the path relative to the served root folder (e.g. {@code **}{@code /*.jar}), to a max-age in seconds.
+ * The first matching rule wins; if no rule matches, the default max-age is used.
+ */
+public class CacheControlPolicy {
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<>();
+    private Long defaultMaxAgeSeconds = null;
+
+    /**
+     * Adds a rule after all existing rules.
+     *
+     * @param glob          the glob pattern to match the root relative path against
+     * @param maxAgeSeconds the max-age for matching resources in seconds
+     */
+    public void addRule(String glob, long maxAgeSeconds) {
+        rules.add(new Rule(glob, maxAgeSeconds));
+    }
+
+    public Long getDefaultMaxAgeSeconds() {
+        return defaultMaxAgeSeconds;
+    }
+
+    /**
+     * @param defaultMaxAgeSeconds max-age of resources not matching any rule; {@code null} to not send a max-age
+     */
+    public void setDefaultMaxAgeSeconds(Long defaultMaxAgeSeconds) {
+        this.defaultMaxAgeSeconds = defaultMaxAgeSeconds;
+    }
+
+    /**
+     * @param rootRelativePath the path of the resource relative to the served root folder
+     * @return the max-age of the resource or {@code null} if none should be sent
+     */
+    public Long getMaxAgeSeconds(Path rootRelativePath) {
+        for (Rule rule : rules) {
+            if (rule.matcher.matches(rootRelativePath)) {
+                return rule.maxAgeSeconds;
+            }
+        }
+        return defaultMaxAgeSeconds;
+    }
+
+    private static final class Rule {
+        private final PathMatcher matcher;
+        private final long maxAgeSeconds;
+
+        private Rule(String glob, long maxAgeSeconds) {
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A journal of the changed files and folders below the served root folder, to answer {@code sync-collection} reports
+ * (RFC 6578) with only the changes since a client's last sync token.
+ * <p>
+ * Every change gets the next sequence number; a sync token is the current sequence number together with the journal's
+ * epoch, a random id created with the journal, so tokens of another journal are rejected. Only the latest change of
+ * every path is kept, up to a maximum number of paths: when older changes are evicted, tokens from before them become
+ * invalid and clients fall back to a full sync. If a journal file is given, all changes are appended to it and
+ * restored when the server restarts, so sync tokens survive restarts. The file is compacted to the latest change of
+ * every path once it has grown large enough. Changes made while the server was down are detected when the journal is
+ * {@link #open(Predicate) opened} by the modification times of the files and folders; if that is not possible, all
+ * tokens from before the restart are rejected.
+ * <p>
+ * The journal is fed by the resources on every change done through the server and by the {@link FileAttributeCache}'s
+ * file system watcher for changes by other processes.
+ */
+public class ChangeJournal implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeJournal.class);
+    private static final String TOKEN_PREFIX = "urn:x-webdav-sync:";
+    private static final int COMPACTION_THRESHOLD = 10_000;
+    /**
+     * Tolerance in milliseconds for the modification times of files changed around the time the journal was closed.
+     */
+    private static final long CLOSED_AT_TOLERANCE_MILLIS = 2_000;
+
+    /**
+     * The kind of a change.
+     */
+    public enum ChangeType {
+        /**
+         * The file or folder has been created or modified.
+         */
+        CHANGED,
+        /**
+         * The file or folder has been deleted.
+         */
+        DELETED,
+        /**
+         * The folder and anything below it have been created or modified, e.g. by a copy or move.
+         */
+        TREE_CHANGED,
+        /**
+         * The file or folder may have been deleted and created again, so anything below it may have been created,
+         * modified or deleted.
+         */
+        REPLACED
+    }
+
+    private final Path root;
+    private final File journal;
+    private final int maxEntries;
+    private final Map<String, Change> changesByPath = new HashMap<>();
+    private final NavigableMap<Long, Change> changesBySequence = new TreeMap<>();
+    private boolean enabled = false;
+    private String epoch = null;
+    private long sequence = 0;
+    private long oldestSequence = 0;
+    private BufferedWriter journalWriter;
+    private int journalRecords;
+    private long closedAt = -1;
+
+    /**
+     * @param rootFolder the served root folder
+     * @param journal    the append-only journal file or {@code null} to keep the changes in memory only
+     * @param maxEntries the maximum number of paths to keep the latest change of
+     */
+    public ChangeJournal(File rootFolder, File journal, int maxEntries) {
+        notNull(rootFolder, "'rootFolder' may not be null");
+        isTrue(maxEntries > 0, "'maxEntries' must be positive");
+        this.root = toKey(rootFolder);
+        this.journal = journal;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Starts recording changes, restoring the changes found in an existing journal file. Until opened, all changes are
+     * ignored.
+     * <p>
+     * All folders below the root folder are handed to the given watcher, so changes by other processes are reported
+     * from now on. If a journal has been restored, files and folders modified since the journal was closed are
+     * recorded as changed; if any folder cannot be watched, the whole root folder is recorded as replaced, so all
+     * tokens from before the restart are rejected.
+     *
+     * @param watcher called with every folder below the root folder, returns {@code true} if the changes of the
+     *                folder's children are reported to this journal from now on
+     * @throws IOException if the journal cannot be read or written or the root folder cannot be scanned
+     */
+    public synchronized void open(Predicate<File> watcher) throws IOException {
+        if (enabled) {
+            return;
+        }
+        boolean restored = journal != null && journal.exists();
+        if (restored) {
+            long lastWritten = journal.lastModified();
+            restore();
+            if (closedAt < 0) {
+                // not closed cleanly, the journal has been written up to the last recorded change
+                closedAt = lastWritten;
+            }
+        }
+        if (epoch == null) {
+            epoch = UUID.randomUUID().toString();
+        }
+        // the journal file is only rewritten after the scan, so a failed or interrupted scan is repeated from the same
+        // time on the next open
+        scan(watcher, restored ? closedAt - CLOSED_AT_TOLERANCE_MILLIS : Long.MAX_VALUE);
+        if (journal != null) {
+            compactJournal();
+        }
+        enabled = true;
+    }
+
+    /**
+     * @return if the journal has been {@link #open(Predicate) opened}
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the sync token of the current state, covering all changes recorded so far
+     */
+    public synchronized String getSyncToken() {
+        return TOKEN_PREFIX + epoch + ":" + sequence;
+    }
+
+    /**
+     * @param syncToken a sync token returned by {@link #getSyncToken()}
+     * @return the sequence number of the token or {@code -1} if the token is malformed, of another journal or its
+     * changes have been evicted
+     */
+    public synchronized long parseSyncToken(String syncToken) {
+        String prefix = TOKEN_PREFIX + epoch + ":";
+        if (syncToken == null || !syncToken.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            long tokenSequence = Long.parseLong(syncToken.substring(prefix.length()));
+            return tokenSequence >= oldestSequence && tokenSequence <= sequence ? tokenSequence : -1;
+        } catch (NumberFormatException e) { //NOSONAR
+            return -1;
+        }
+    }
+
+    /**
+     * @param file the created or modified file or folder
+     */
+    public void recordChanged(File file) {
+        record(file, ChangeType.CHANGED);
+    }
+
+    /**
+     * @param file the deleted file or folder
+     */
+    public void recordDeleted(File file) {
+        record(file, ChangeType.DELETED);
+    }
+
+    /**
+     * @param folder the folder, that may have been changed together with anything below it
+     */
+    public void recordTreeChanged(File folder) {
+        record(folder, ChangeType.TREE_CHANGED);
+    }
+
+    /**
+     * Records a change reported by a file system watcher, deriving its type from the current state of the file system.
+     *
+     * @param file    the changed file or folder
+     * @param watched if the changes of the folder's children are reported by the watcher themselves; if not, a folder
+     *                is recorded as {@link ChangeType#REPLACED}
+     */
+    public void recordExternalChange(File file, boolean watched) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!file.exists()) {
+            record(file, ChangeType.DELETED);
+        } else if (file.isDirectory() && !watched) {
+            record(file, ChangeType.REPLACED);
+        } else {
+            record(file, ChangeType.CHANGED);
+        }
+    }
+
+    /**
+     * Returns the latest changes of the members of a collection since a sync token, in the order they happened.
+     *
+     * @param collection the path of the collection relative to the root folder, {@code /} separated
+     * @param infinite   {@code true} to return the changes of all members below the collection, {@code false} for
+     *                   the direct members only
+     * @param since      the {@link #parseSyncToken(String) sequence number} of the client's sync token
+     * @return the changes or {@code null} if the changes cannot be expressed as changes of single members, because
+     * the collection itself or, for {@code infinite}, a folder below it has been deleted or replaced since the token;
+     * the client has to sync from scratch then
+     */
+    public synchronized List<Change> getChanges(String collection, boolean infinite, long since) {
+        for (String path = collection; path != null; path = parentOf(path)) {
+            Change change = changesByPath.get(path);
+            if (change != null && change.sequence > since && change.type != ChangeType.CHANGED) {
+                return null;
+            }
+        }
+
+        List<Change> result = new ArrayList<>();
+        for (Change change : changesBySequence.tailMap(since, false).values()) {
+            if (infinite && isBelow(collection, change.path)) {
+                if (change.type == ChangeType.REPLACED) {
+                    return null;
+                }
+                result.add(change);
+            } else if (!infinite && collection.equals(parentOf(change.path))) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param file a file or folder below the root folder
+     * @return the path of the file relative to the root folder, {@code /} separated
+     */
+    public String relativePath(File file) {
+        return root.relativize(toKey(file)).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return the number of paths with a recorded change
+     */
+    public synchronized int size() {
+        return changesByPath.size();
+    }
+
+    /**
+     * Stops recording changes and closes the journal file.
+     *
+     * @throws IOException if closing the journal file fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter != null) {
+            if (enabled) {
+                // not after a failed open, whose scan may have missed changes that must be found on the next one
+                journalWriter.write("CLOSED\t" + System.currentTimeMillis());
+                journalWriter.newLine();
+            }
+            journalWriter.close();
+            journalWriter = null;
+        }
+        enabled = false;
+    }
+
+    private void record(File file, ChangeType type) {
+        Path key = toKey(file);
+        if (!key.startsWith(root)) {
+            return;
+        }
+        String path = relativePath(file);
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            Change change = add(new Change(path, type, ++sequence));
+            appendToJournal(changeRecord(change));
+        }
+    }
+
+    /**
+     * Adds a change, replacing the previous change of the same path and evicting the oldest changes if there are too
+     * many. Must be called while holding the monitor of this journal.
+     */
+    private Change add(Change recorded) {
+        Change change = recorded;
+        Change previous = changesByPath.get(change.path);
+        if (previous != null) {
+            changesBySequence.remove(previous.sequence);
+            change = new Change(change.path, merge(previous.type, change.type), change.sequence);
+        }
+        changesByPath.put(change.path, change);
+        changesBySequence.put(change.sequence, change);
+        sequence = Math.max(sequence, change.sequence);
+
+        while (changesByPath.size() > maxEntries) {
+            Change evicted = changesBySequence.pollFirstEntry().getValue();
+            changesByPath.remove(evicted.path);
+            oldestSequence = evicted.sequence;
+        }
+        return change;
+    }
+
+    /**
+     * @return the type of a change following another change of the same path, keeping what clients that have not seen
+     * the previous change need to know
+     */
+    private static ChangeType merge(ChangeType previous, ChangeType next) {
+        if (next == ChangeType.DELETED) {
+            return next;
+        } else if (previous == ChangeType.DELETED || previous == ChangeType.REPLACED) {
+            return ChangeType.REPLACED;
+        } else if (previous == ChangeType.TREE_CHANGED) {
+            return next == ChangeType.CHANGED ? previous : next;
+        }
+        return next;
+    }
+
+    private static String parentOf(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? "" : path.substring(0, separator);
+    }
+
+    private static boolean isBelow(String collection, String path) {
+        return collection.isEmpty() ? !path.isEmpty() : path.startsWith(collection + "/");
+    }
+
+    private static Path toKey(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Hands all folders to the watcher and records the files and folders modified since the given time. Must be called
+     * while holding the monitor of this journal.
+     */
+    private void scan(Predicate<File> watcher, long modifiedSince) throws IOException {
+        boolean[] allWatched = {true};
+        int[] modified = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!watcher.test(dir.toFile())) {
+                    allWatched[0] = false;
+                }
+                if (!dir.equals(root) && isModifiedSince(attrs, modifiedSince)) {
+                    // children may have been created or deleted
+                    recordScanned(dir, ChangeType.REPLACED);
+                    modified[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (AtomicFileWriter.isTemporaryFile(file)) {
+                    AtomicFileWriter.deleteIfStale(file, attrs);
+                } else if (isModifiedSince(attrs, modifiedSince)) {
+                    recordScanned(file, ChangeType.CHANGED);
+                    modified[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                LOGGER.debug("Could not read {} while scanning for changes", file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (modifiedSince == Long.MAX_VALUE) {
+            return;
+        }
+        if (!allWatched[0]) {
+            LOGGER.warn("Not all folders below {} can be watched, rejecting all sync tokens from before the restart",
+                    root);
+            recordScanned(root, ChangeType.REPLACED);
+        } else if (modified[0] > 0) {
+            LOGGER.info("Recorded {} files and folders changed while the server was down", modified[0]);
+        }
+    }
+
+    private static boolean isModifiedSince(BasicFileAttributes attrs, long since) {
+        return attrs.lastModifiedTime().toMillis() >= since || attrs.creationTime().toMillis() >= since;
+    }
+
+    /**
+     * Must be called while holding the monitor of this journal.
+     */
+    private void recordScanned(Path path, ChangeType type) {
+        String relativePath = root.relativize(path).toString().replace(File.separatorChar, '/');
+        appendToJournal(changeRecord(add(new Change(relativePath, type, ++sequence))));
+    }
+
+    // ----- journal -----
+
+    private void restore() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                replay(line);
+            }
+        }
+        LOGGER.info("Restored {} changes up to sync token {} from journal {}", changesByPath.size(), sequence,
+                journal);
+    }
+
+    private void replay(String line) throws UnsupportedEncodingException {
+        String[] fields = line.split("\t", -1);
+        try {
+            if ("CLOSED".equals(fields[0])) {
+                closedAt = Long.parseLong(fields[1]);
+            } else if ("EPOCH".equals(fields[0])) {
+                epoch = fields[1];
+                oldestSequence = Long.parseLong(fields[2]);
+                sequence = Math.max(sequence, Long.parseLong(fields[3]));
+            } else {
+                closedAt = -1;
+                add(new Change(URLDecoder.decode(fields[2], "UTF-8"), ChangeType.valueOf(fields[0]),
+                        Long.parseLong(fields[1])));
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            // most likely the last record, cut off by a crash
+            LOGGER.warn("Ignoring malformed change journal record {}", line, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the latest change of every path. Must be called while holding the monitor of
+     * this journal.
+     */
+    private void compactJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        Path compacted = journal.toPath().resolveSibling(journal.getName() + ".compact");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            writer.write("EPOCH\t" + epoch + "\t" + oldestSequence + "\t" + sequence);
+            writer.newLine();
+            for (Change change : changesBySequence.values()) {
+                writer.write(changeRecord(change));
+                writer.newLine();
+            }
+        }
+        Files.move(compacted, journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journalWriter = Files.newBufferedWriter(journal.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        journalRecords = changesBySequence.size();
+        LOGGER.debug("Compacted change journal {} to {} records", journal, journalRecords);
+    }
+
+    /**
+     * Must be called while holding the monitor of this journal.
+     */
+    private void appendToJournal(String record) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(record);
+            journalWriter.newLine();
+            journalWriter.flush();
+            journalRecords++;
+            if (journalRecords > COMPACTION_THRESHOLD && journalRecords > 4 * changesBySequence.size()) {
+                compactJournal();
+            }
+        } catch (IOException e) {
+            // the change is still answered from memory, it only will not survive a restart
+            LOGGER.error("Error writing change journal {}", journal, e);
+        }
+    }
+
+    private static String changeRecord(Change change) {
+        try {
+            return change.type + "\t" + change.sequence + "\t" + URLEncoder.encode(change.path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The latest change of a single path.
+     */
+    public static final class Change {
+        private final String path;
+        private final ChangeType type;
+        private final long sequence;
+
+        private Change(String path, ChangeType type, long sequence) {
+            this.path = path;
+            this.type = type;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the path relative to the root folder, {@code /} separated
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+}
@@ -19,8 +19,10 @@
 package io.github.atetzner.webdav.server;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -38,9 +40,69 @@ public class CommandLineArgs {
     @Parameter(names = {"-c", "--credentials"}, description = "Optional credentials to authenticate at the server. Can be given multiple times. If none are given, authentication is disabled. Use the form USER:PASSWORD")
     private List<String> userCredentials = new LinkedList<>();
 
-    @Parameter(description = "FOLDER_TO_SERVE", required = true)
+    @Parameter(names = {"--credentials-file"}, description = "Optional file with credentials to authenticate at the server, one USER:HASH per line. Create the hashes with --hash-password")
+    private String credentialsFile = null;
+
+    @Parameter(names = {"--hash-password"}, description = "Read a password from the console, print its hash for the credentials file and exit")
+    private boolean hashPassword = false;
+
+    @Parameter(names = {"--max-age"}, description = "Optional max-age for the Cache-Control header of matching resources. Can be given multiple times, the first matching pattern wins. Use the form GLOB=SECONDS, the glob is matched against the path relative to the served folder")
+    private List<String> maxAges = new LinkedList<>();
+
+    @Parameter(names = {"--mime-type"}, description = "Optional content type for a file extension, overriding the built-in table. Can be given multiple times. Use the form EXTENSION=TYPE, e.g. log=text/plain")
+    private List<String> mimeTypes = new LinkedList<>();
+
+    @Parameter(description = "FOLDER_TO_SERVE")
     private List<String> rootFolder = new LinkedList<>();
 
+    @Parameter(names = {"--streaming-propfind"}, description = "Stream PROPFIND responses for folders instead of building them in memory")
+    private boolean streamingPropFind = false;
+
+    @Parameter(names = {"--virtual-threads"}, description = "Process requests on virtual threads, if supported by the JVM")
+    private boolean virtualThreads = false;
+
+    @Parameter(names = {"--async-send-threshold"}, description = "Minimum size in bytes of file contents to send with non-blocking I/O, which frees the request thread while slow clients download, -1 to disable")
+    private long asyncSendThreshold = -1;
+
+    @Parameter(names = {"--content-cache-size"}, description = "Maximum total size in bytes of the content of frequently requested files kept in memory, 0 to disable")
+    private long contentCacheSize = 0;
+
+    @Parameter(names = {"--folder-size-index"}, description = "Index the recursive sizes of all folders in the background to answer the quota-used-bytes and quota-available-bytes properties")
+    private boolean folderSizeIndex = false;
+
+    @Parameter(names = {"--quota-bytes"}, description = "Maximum total size in bytes of all served files, larger uploads are rejected with 507. Implies --folder-size-index, -1 for no quota")
+    private long quotaBytes = -1;
+
+    @Parameter(names = {"--upload-durability"}, description = "How durable uploads are when the server answers: NONE, FILE (fsync file) or FILE_AND_FOLDER (fsync file and folder)")
+    private UploadDurability uploadDurability = UploadDurability.NONE;
+
+    @Parameter(names = {"--reflink-min-size"}, description = "Minimum size in bytes of files to copy as copy-on-write clone (cp --reflink) on supporting file systems, -1 to disable")
+    private long reflinkMinSize = -1;
+
+    @Parameter(names = {"--tree-parallelism"}, description = "Maximum number of threads for recursive copies and deletes of folders. Defaults to half of the available processors")
+    private Integer treeParallelism = null;
+
+    @Parameter(names = {"--lock-journal"}, description = "File to persist WebDAV locks to, so they survive a restart. Locks are kept in memory only if not given")
+    private String lockJournal = null;
+
+    @Parameter(names = {"--sync-collection"}, description = "Record all changes to answer sync-collection reports (RFC 6578), so clients fetch only the changes since their last sync")
+    private boolean syncCollection = false;
+
+    @Parameter(names = {"--sync-journal"}, description = "File to persist the changes for sync-collection reports to, so sync tokens survive restarts. Changes made while the server is down are detected by modification time. Implies --sync-collection")
+    private String syncJournal = null;
+
+    @Parameter(names = {"--metrics-path"}, description = "Optional path to serve request metrics at in the Prometheus text format, e.g. /metrics")
+    private String metricsPath = null;
+
+    @ParametersDelegate
+    private ConnectorConfiguration connectorConfiguration = new ConnectorConfiguration();
+
+    @ParametersDelegate
+    private CompressionConfiguration compressionConfiguration = new CompressionConfiguration();
+
+    @ParametersDelegate
+    private QosConfiguration qosConfiguration = new QosConfiguration();
+
     @Parameter(names = {"-h", "--help"}, description = "Show help and exit", help = true)
     private boolean help = false;
 
@@ -90,6 +152,98 @@ public class CommandLineArgs {
         this.userCredentials = userCredentials;
     }
 
+    /**
+     * File with users and the hashes of their passwords. Commandline arg: {@code --credentials-file}
+     *
+     * @return the path of the credentials file or {@code null} if none is given
+     */
+    public String getCredentialsFile() {
+        return credentialsFile;
+    }
+
+    public void setCredentialsFile(String credentialsFile) {
+        this.credentialsFile = credentialsFile;
+    }
+
+    /**
+     * If a password hash should be printed instead of starting the server. Commandline arg: {@code --hash-password}
+     *
+     * @return If a password hash should be printed
+     */
+    public boolean isHashPassword() {
+        return hashPassword;
+    }
+
+    public void setHashPassword(boolean hashPassword) {
+        this.hashPassword = hashPassword;
+    }
+
+    /**
+     * The raw max-age rules as list of {@code GLOB=SECONDS}. Commandline arg: {@code --max-age}
+     *
+     * @return raw max-age rules
+     */
+    public List<String> getMaxAges() {
+        return maxAges;
+    }
+
+    /**
+     * The parsed max-age rules as ordered map of {@code GLOB -> SECONDS}. Commandline arg: {@code --max-age}
+     *
+     * @return parsed max-age rules
+     */
+    public Map<String, Long> getParsedMaxAges() {
+        Map<String, Long> result = new LinkedHashMap<>();
+
+        for (String maxAge : maxAges) {
+            int separator = maxAge.lastIndexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+
+            try {
+                result.put(maxAge.substring(0, separator), Long.valueOf(maxAge.substring(separator + 1)));
+            } catch (NumberFormatException e) { //NOSONAR
+                // ignore invalid rules like invalid credentials
+            }
+        }
+
+        return result;
+    }
+
+    public void setMaxAges(List<String> maxAges) {
+        this.maxAges = maxAges;
+    }
+
+    public List<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    /**
+     * The parsed content types as map of {@code EXTENSION -> TYPE}. Commandline arg: {@code --mime-type}
+     *
+     * @return parsed content types
+     */
+    public Map<String, String> getParsedMimeTypes() {
+        Map<String, String> result = new LinkedHashMap<>();
+
+        for (String mimeType : mimeTypes) {
+            int separator = mimeType.indexOf('=');
+            if (separator <= 0 || separator == mimeType.length() - 1) {
+                // ignore invalid mappings like invalid credentials
+                continue;
+            }
+
+            result.put(mimeType.substring(0, separator), mimeType.substring(separator + 1));
+        }
+
+        return result;
+    }
+
+    public void setMimeTypes(List<String> mimeTypes) {
+        this.mimeTypes = mimeTypes;
+    }
+
     /**
      * The root folder that the server will serve.
      *
@@ -103,6 +257,214 @@ public class CommandLineArgs {
         this.rootFolder = rootFolder;
     }
 
+    /**
+     * If PROPFIND responses for folders should be streamed. Commandline arg: {@code --streaming-propfind}
+     *
+     * @return If PROPFIND responses should be streamed
+     */
+    public boolean isStreamingPropFind() {
+        return streamingPropFind;
+    }
+
+    public void setStreamingPropFind(boolean streamingPropFind) {
+        this.streamingPropFind = streamingPropFind;
+    }
+
+    /**
+     * If requests should be processed on virtual threads. Commandline arg: {@code --virtual-threads}
+     *
+     * @return If requests should be processed on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Minimum size of file contents to send with non-blocking I/O. Commandline arg: {@code --async-send-threshold}
+     *
+     * @return minimum size in bytes, negative if disabled
+     */
+    public long getAsyncSendThreshold() {
+        return asyncSendThreshold;
+    }
+
+    public void setAsyncSendThreshold(long asyncSendThreshold) {
+        this.asyncSendThreshold = asyncSendThreshold;
+    }
+
+    /**
+     * Maximum size of the content cache. Commandline arg: {@code --content-cache-size}
+     *
+     * @return maximum size in bytes, {@code 0} if disabled
+     */
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    public void setContentCacheSize(long contentCacheSize) {
+        this.contentCacheSize = contentCacheSize;
+    }
+
+    /**
+     * Whether to index the folder sizes. Commandline arg: {@code --folder-size-index}
+     *
+     * @return {@code true} if the folder sizes are indexed
+     */
+    public boolean isFolderSizeIndex() {
+        return folderSizeIndex;
+    }
+
+    public void setFolderSizeIndex(boolean folderSizeIndex) {
+        this.folderSizeIndex = folderSizeIndex;
+    }
+
+    /**
+     * Quota of all served files. Commandline arg: {@code --quota-bytes}
+     *
+     * @return the quota in bytes, {@code -1} for no quota
+     */
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * How durable uploads are when the server answers. Commandline arg: {@code --upload-durability}
+     *
+     * @return the upload durability
+     */
+    public UploadDurability getUploadDurability() {
+        return uploadDurability;
+    }
+
+    public void setUploadDurability(UploadDurability uploadDurability) {
+        this.uploadDurability = uploadDurability;
+    }
+
+    /**
+     * Minimum size of files to copy as copy-on-write clone. Commandline arg: {@code --reflink-min-size}
+     *
+     * @return minimum size in bytes, negative if disabled
+     */
+    public long getReflinkMinSize() {
+        return reflinkMinSize;
+    }
+
+    public void setReflinkMinSize(long reflinkMinSize) {
+        this.reflinkMinSize = reflinkMinSize;
+    }
+
+    /**
+     * Maximum number of threads for recursive folder operations. Commandline arg: {@code --tree-parallelism}
+     *
+     * @return the parallelism or {@code null} to use the default
+     */
+    public Integer getTreeParallelism() {
+        return treeParallelism;
+    }
+
+    public void setTreeParallelism(Integer treeParallelism) {
+        this.treeParallelism = treeParallelism;
+    }
+
+    /**
+     * File to persist locks to. Commandline arg: {@code --lock-journal}
+     *
+     * @return the path of the journal file or {@code null} to keep locks in memory only
+     */
+    public String getLockJournal() {
+        return lockJournal;
+    }
+
+    public void setLockJournal(String lockJournal) {
+        this.lockJournal = lockJournal;
+    }
+
+    /**
+     * Whether to answer sync-collection reports. Commandline arg: {@code --sync-collection}
+     *
+     * @return {@code true} if changes are recorded for sync-collection reports
+     */
+    public boolean isSyncCollection() {
+        return syncCollection;
+    }
+
+    public void setSyncCollection(boolean syncCollection) {
+        this.syncCollection = syncCollection;
+    }
+
+    /**
+     * File to persist the changes for sync-collection reports to. Commandline arg: {@code --sync-journal}
+     *
+     * @return the path of the journal file or {@code null} to keep the changes in memory only
+     */
+    public String getSyncJournal() {
+        return syncJournal;
+    }
+
+    public void setSyncJournal(String syncJournal) {
+        this.syncJournal = syncJournal;
+    }
+
+    /**
+     * Path to serve the metrics at. Commandline arg: {@code --metrics-path}
+     *
+     * @return the path or {@code null} to not serve metrics
+     */
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * Thread pool and connector tuning. Commandline args: see {@link ConnectorConfiguration}
+     *
+     * @return the connector configuration
+     */
+    public ConnectorConfiguration getConnectorConfiguration() {
+        return connectorConfiguration;
+    }
+
+    public void setConnectorConfiguration(ConnectorConfiguration connectorConfiguration) {
+        this.connectorConfiguration = connectorConfiguration;
+    }
+
+    /**
+     * Compression of responses. Commandline args: see {@link CompressionConfiguration}
+     *
+     * @return the compression configuration
+     */
+    public CompressionConfiguration getCompressionConfiguration() {
+        return compressionConfiguration;
+    }
+
+    public void setCompressionConfiguration(CompressionConfiguration compressionConfiguration) {
+        this.compressionConfiguration = compressionConfiguration;
+    }
+
+    /**
+     * Admission control and bandwidth limits. Commandline args: see {@link QosConfiguration}
+     *
+     * @return the QoS configuration
+     */
+    public QosConfiguration getQosConfiguration() {
+        return qosConfiguration;
+    }
+
+    public void setQosConfiguration(QosConfiguration qosConfiguration) {
+        this.qosConfiguration = qosConfiguration;
+    }
+
     /**
      * If the help should be printed. Commandline arg: {@code -h --help}
      *
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import com.beust.jcommander.Parameter;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Configuration of compressed responses. The fields are annotated to be used as
+ * {@link com.beust.jcommander.ParametersDelegate parameter delegate} of the {@link CommandLineArgs}.
+ */
+public class CompressionConfiguration {
+
+    @Parameter(names = {"--gzip"}, description = "Compress responses with gzip if accepted by the client")
+    private boolean gzipEnabled = false;
+
+    @Parameter(names = {"--gzip-min-size"}, description = "Minimum response size in bytes to compress")
+    private int gzipMinSize = 1024;
+
+    @Parameter(names = {"--gzip-include-mime"}, description = "Mime type to compress. Can be given multiple times. If none are given, all mime types except the excluded ones are compressed")
+    private List<String> includedMimeTypes = new LinkedList<>();
+
+    @Parameter(names = {"--gzip-exclude-mime"}, description = "Mime type to never compress in addition to jetty's defaults for already compressed formats. Can be given multiple times")
+    private List<String> excludedMimeTypes = new LinkedList<>();
+
+    @Parameter(names = {"--precompressed"}, description = "Serve FILE.br or FILE.gz instead of FILE if accepted by the client and not older than FILE")
+    private boolean precompressedEnabled = false;
+
+    /**
+     * If responses are compressed on the fly. Command line arg: {@code --gzip}
+     *
+     * @return if gzip compression is enabled
+     */
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * Responses smaller than this size are not compressed. Command line arg: {@code --gzip-min-size}
+     *
+     * @return minimum size in bytes
+     */
+    public int getGzipMinSize() {
+        return gzipMinSize;
+    }
+
+    public void setGzipMinSize(int gzipMinSize) {
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    /**
+     * The mime types to compress; if empty all mime types not excluded are compressed. Command line arg:
+     * {@code --gzip-include-mime}
+     *
+     * @return the included mime types
+     */
+    public List<String> getIncludedMimeTypes() {
+        return includedMimeTypes;
+    }
+
+    public void setIncludedMimeTypes(List<String> includedMimeTypes) {
+        this.includedMimeTypes = includedMimeTypes;
+    }
+
+    /**
+     * The mime types to never compress, in addition to the already compressed formats (images, video, archives) jetty
+     * excludes by default. Command line arg: {@code --gzip-exclude-mime}
+     *
+     * @return the excluded mime types
+     */
+    public List<String> getExcludedMimeTypes() {
+        return excludedMimeTypes;
+    }
+
+    public void setExcludedMimeTypes(List<String> excludedMimeTypes) {
+        this.excludedMimeTypes = excludedMimeTypes;
+    }
+
+    /**
+     * If precompressed siblings ({@code FILE.br}, {@code FILE.gz}) are served instead of a file. Command line arg:
+     * {@code --precompressed}
+     *
+     * @return if precompressed siblings are served
+     */
+    public boolean isPrecompressedEnabled() {
+        return precompressedEnabled;
+    }
+
+    public void setPrecompressedEnabled(boolean precompressedEnabled) {
+        this.precompressedEnabled = precompressedEnabled;
+    }
+}
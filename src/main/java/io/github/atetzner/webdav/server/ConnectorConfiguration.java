@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Tuning of jetty's thread pool and HTTP connector. The defaults are the defaults of jetty. The fields are annotated to
+ * be used as {@link com.beust.jcommander.ParametersDelegate parameter delegate} of the {@link CommandLineArgs}.
+ */
+public class ConnectorConfiguration {
+
+    @Parameter(names = {"--min-threads"}, description = "Minimum number of threads in the request thread pool")
+    private int minThreads = 8;
+
+    @Parameter(names = {"--max-threads"}, description = "Maximum number of threads in the request thread pool")
+    private int maxThreads = 200;
+
+    @Parameter(names = {"--acceptors"}, description = "Number of acceptor threads, -1 to derive from the number of CPUs")
+    private int acceptors = -1;
+
+    @Parameter(names = {"--selectors"}, description = "Number of selector threads, -1 to derive from the number of CPUs")
+    private int selectors = -1;
+
+    @Parameter(names = {"--idle-timeout"}, description = "Idle timeout of connections in milliseconds")
+    private long idleTimeout = 30_000;
+
+    @Parameter(names = {"--accept-queue-size"}, description = "Size of the accept queue, 0 for the OS default")
+    private int acceptQueueSize = 0;
+
+    @Parameter(names = {"--output-buffer-size"}, description = "Size of the response output buffer in bytes")
+    private int outputBufferSize = 32 * 1024;
+
+    @Parameter(names = {"--io-buffer-size"}, description = "Size of the pooled buffers used to copy file content in bytes")
+    private int ioBufferSize = MiltonWebDAVResourceFactory.DEFAULT_BUFFER_SIZE;
+
+    @Parameter(names = {"--buffer-pool-max-memory"}, description = "Maximum memory in bytes retained by the buffer pool, both for heap and direct buffers. 0 for jetty's heuristic, -1 for unlimited")
+    private long bufferPoolMaxMemory = 0;
+
+    @Parameter(names = {"--http2"}, description = "Accept HTTP/2 over cleartext (h2c), both via upgrade and with prior knowledge")
+    private boolean http2Enabled = false;
+
+    @Parameter(names = {"--http2-max-concurrent-streams"}, description = "Maximum number of concurrent HTTP/2 streams per connection")
+    private int http2MaxConcurrentStreams = 128;
+
+    @Parameter(names = {"--http2-stream-window"}, description = "Initial HTTP/2 flow-control window of a stream in bytes")
+    private int http2StreamWindow = 512 * 1024;
+
+    @Parameter(names = {"--http2-session-window"}, description = "Initial HTTP/2 flow-control window of a connection in bytes")
+    private int http2SessionWindow = 1024 * 1024;
+
+    @Parameter(names = {"--jmx"}, description = "Expose the server's thread pool, connector and request metrics via JMX")
+    private boolean jmxEnabled = false;
+
+    /**
+     * Minimum number of threads kept in the request thread pool. Command line arg: {@code --min-threads}
+     *
+     * @return minimum number of threads
+     */
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public void setMinThreads(int minThreads) {
+        this.minThreads = minThreads;
+    }
+
+    /**
+     * Maximum number of threads in the request thread pool. Command line arg: {@code --max-threads}
+     *
+     * @return maximum number of threads
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Number of threads accepting new connections, {@code -1} to let jetty decide. Command line arg:
+     * {@code --acceptors}
+     *
+     * @return number of acceptor threads
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Number of threads selecting on the connections, {@code -1} to let jetty decide. Command line arg:
+     * {@code --selectors}
+     *
+     * @return number of selector threads
+     */
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors) {
+        this.selectors = selectors;
+    }
+
+    /**
+     * Milliseconds after which an idle connection is closed. Command line arg: {@code --idle-timeout}
+     *
+     * @return idle timeout in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Size of the server socket's accept queue, {@code 0} for the OS default. Command line arg:
+     * {@code --accept-queue-size}
+     *
+     * @return accept queue size
+     */
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public void setAcceptQueueSize(int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+    }
+
+    /**
+     * Size of the buffer aggregating response content before it is written to the network. Command line arg:
+     * {@code --output-buffer-size}
+     *
+     * @return output buffer size in bytes
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * Size of the buffers taken from the shared buffer pool to copy file content for downloads and uploads. Command
+     * line arg: {@code --io-buffer-size}
+     *
+     * @return I/O buffer size in bytes
+     */
+    public int getIoBufferSize() {
+        return ioBufferSize;
+    }
+
+    public void setIoBufferSize(int ioBufferSize) {
+        this.ioBufferSize = ioBufferSize;
+    }
+
+    /**
+     * Maximum memory retained by the shared buffer pool, separately for heap and direct buffers. {@code 0} for jetty's
+     * heuristic, {@code -1} for unlimited. Command line arg: {@code --buffer-pool-max-memory}
+     *
+     * @return maximum retained memory in bytes
+     */
+    public long getBufferPoolMaxMemory() {
+        return bufferPoolMaxMemory;
+    }
+
+    public void setBufferPoolMaxMemory(long bufferPoolMaxMemory) {
+        this.bufferPoolMaxMemory = bufferPoolMaxMemory;
+    }
+
+    /**
+     * If HTTP/2 over cleartext (h2c) is accepted next to HTTP/1.1. Command line arg: {@code --http2}
+     *
+     * @return if HTTP/2 is enabled
+     */
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * Maximum number of concurrent streams, i.e. requests, on one HTTP/2 connection. Command line arg:
+     * {@code --http2-max-concurrent-streams}
+     *
+     * @return maximum number of concurrent streams
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public void setHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+    }
+
+    /**
+     * Initial flow-control window of each HTTP/2 stream. Command line arg: {@code --http2-stream-window}
+     *
+     * @return stream window in bytes
+     */
+    public int getHttp2StreamWindow() {
+        return http2StreamWindow;
+    }
+
+    public void setHttp2StreamWindow(int http2StreamWindow) {
+        this.http2StreamWindow = http2StreamWindow;
+    }
+
+    /**
+     * Initial flow-control window of a whole HTTP/2 connection. Command line arg: {@code --http2-session-window}
+     *
+     * @return session window in bytes
+     */
+    public int getHttp2SessionWindow() {
+        return http2SessionWindow;
+    }
+
+    public void setHttp2SessionWindow(int http2SessionWindow) {
+        this.http2SessionWindow = http2SessionWindow;
+    }
+
+    /**
+     * If the server's components, e.g. thread pool, connector and {@link ServerMetrics metrics}, are exposed as MBeans
+     * on the platform MBean server.
+     * Command line arg: {@code --jmx}
+     *
+     * @return if JMX is enabled
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.common.ContentTypeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the content types of the served files. Content types are looked up by file extension in a table loaded
+ * once from {@value #TABLE_RESOURCE}; extensions not in the table are resolved once by milton's {@link
+ * ContentTypeUtils} and then remembered. The table can be extended and overridden by {@link #addMapping(String,
+ * String) mappings} from the configuration. The content of files without extension is sniffed, and the result is
+ * remembered until the file changes. The negotiation of the content type against the {@code Accept} header of the
+ * client is remembered per pair of content type and header.
+ */
+public class ContentTypeResolver {
+
+    public static final String TABLE_RESOURCE = "/mime-types.properties";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentTypeResolver.class);
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final int MAX_EXTENSIONS = 10_000;
+    private static final int MAX_NEGOTIATIONS = 10_000;
+    private static final int MAX_SNIFFED_FILES = 10_000;
+    private static final int SNIFF_LENGTH = 1024;
+
+    private final Map<String, String> byExtension = new ConcurrentHashMap<>();
+    private final Map<String, String> negotiated = new ConcurrentHashMap<>();
+    private final Map<String, SniffedType> sniffed = new LinkedHashMap<String, SniffedType>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SniffedType> eldest) {
+            return size() > MAX_SNIFFED_FILES;
+        }
+    };
+
+    public ContentTypeResolver() {
+        Properties table = new Properties();
+        try (InputStream in = ContentTypeResolver.class.getResourceAsStream(TABLE_RESOURCE)) {
+            if (in != null) {
+                table.load(in);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error loading content type table {}", TABLE_RESOURCE, e);
+        }
+        table.forEach((extension, mime) -> byExtension.put(((String) extension).toLowerCase(Locale.ROOT),
+                (String) mime));
+        LOGGER.debug("Loaded {} content types", byExtension.size());
+    }
+
+    /**
+     * Adds a content type for an extension, replacing the content type of the table.
+     *
+     * @param extension the file extension without leading dot, case insensitive
+     * @param mime      the content type of files with this extension
+     */
+    public void addMapping(String extension, String mime) {
+        byExtension.put(extension.toLowerCase(Locale.ROOT), mime);
+        negotiated.clear();
+    }
+
+    /**
+     * Resolves the content type of a file by its name only.
+     *
+     * @param name the name of the file
+     * @return the content type
+     */
+    public String getMimeType(String name) {
+        String extension = extensionOf(name);
+        if (extension == null) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        String mime = byExtension.get(extension);
+        if (mime == null) {
+            mime = ContentTypeUtils.findContentTypes(name);
+            if (mime == null) {
+                mime = DEFAULT_CONTENT_TYPE;
+            }
+            if (byExtension.size() < MAX_EXTENSIONS) {
+                byExtension.put(extension, mime);
+            }
+        }
+        return mime;
+    }
+
+    /**
+     * Resolves the content type of a file by its name or, if it has no extension, by its content.
+     *
+     * @param file       the file
+     * @param attributes the attributes of the file
+     * @return the content type
+     */
+    public String getMimeType(File file, FileAttributes attributes) {
+        if (extensionOf(file.getName()) != null || !attributes.exists() || attributes.isDirectory()) {
+            return getMimeType(file.getName());
+        }
+
+        String key = file.getAbsolutePath();
+        SniffedType sniffedType;
+        synchronized (sniffed) {
+            sniffedType = sniffed.get(key);
+        }
+        if (sniffedType == null || sniffedType.lastModified != attributes.getLastModified()
+                || sniffedType.size != attributes.getSize()) {
+            sniffedType = new SniffedType(sniff(file), attributes.getLastModified(), attributes.getSize());
+            synchronized (sniffed) {
+                sniffed.put(key, sniffedType);
+            }
+        }
+        return sniffedType.mime;
+    }
+
+    /**
+     * Resolves the content type of a file and negotiates it against the types accepted by the client.
+     *
+     * @param file       the file
+     * @param attributes the attributes of the file
+     * @param accepts    the {@code Accept} header of the request, may be {@code null}
+     * @return the content type to send
+     */
+    public String getContentType(File file, FileAttributes attributes, String accepts) {
+        return negotiate(getMimeType(file, attributes), accepts);
+    }
+
+    /**
+     * Negotiates a content type against the types accepted by the client, see {@link
+     * ContentTypeUtils#findAcceptableContentType(String, String)}.
+     *
+     * @param mime    the content type of the resource
+     * @param accepts the {@code Accept} header of the request, may be {@code null}
+     * @return the content type to send
+     */
+    public String negotiate(String mime, String accepts) {
+        String key = mime + '\n' + (accepts == null ? "" : accepts);
+        String contentType = negotiated.get(key);
+        if (contentType == null) {
+            contentType = ContentTypeUtils.findAcceptableContentType(mime, accepts);
+            if (negotiated.size() >= MAX_NEGOTIATIONS) {
+                // Accept headers vary little in practice, so simply start over instead of tracking usage
+                negotiated.clear();
+            }
+            if (contentType != null) {
+                negotiated.put(key, contentType);
+            }
+        }
+        return contentType;
+    }
+
+    private static String sniff(File file) {
+        byte[] head = new byte[SNIFF_LENGTH];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Could not sniff content type of {}", file, e);
+            return DEFAULT_CONTENT_TYPE;
+        }
+
+        try {
+            String mime = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(head, 0, length));
+            if (mime != null) {
+                return mime;
+            }
+        } catch (IOException e) {
+            // cannot happen for an in-memory stream
+            LOGGER.debug("Could not sniff content type of {}", file, e);
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (head[i] == 0) {
+                return DEFAULT_CONTENT_TYPE;
+            }
+        }
+        return "text/plain";
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return null;
+        }
+        return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The sniffed content type of a file, valid as long as the file is not modified.
+     */
+    private static final class SniffedType {
+
+        private final String mime;
+        private final long lastModified;
+        private final long size;
+
+        private SniffedType(String mime, long lastModified, long size) {
+            this.mime = mime;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+/**
+ * The way a file has been copied by the {@link FileCopier}.
+ */
+public enum CopyStrategy {
+    /**
+     * The file system cloned the file's extents (copy-on-write); no data has been copied.
+     */
+    REFLINK,
+    /**
+     * The file has been copied by the operating system using {@link java.nio.file.Files#copy}.
+     */
+    NATIVE,
+    /**
+     * The file's content has been streamed through the JVM.
+     */
+    STREAM
+}
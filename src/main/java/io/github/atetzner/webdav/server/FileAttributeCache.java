@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A bounded LRU cache of {@link FileAttributes} for the files below the served root folder. Entries are invalidated by
+ * a {@link WatchService} watching every folder that has cached entries and by the resources on every change done
+ * through the server. As not all file systems report changes reliably, entries additionally expire after a
+ * configurable time-to-live.
+ * <p>
+ * The number of watched folders is limited, as every watch takes kernel resources, e.g. an inotify watch on Linux.
+ * Folders over the limit and folders that could not be watched are remembered and not tried again; their entries
+ * rely on the time-to-live only.
+ */
+public class FileAttributeCache implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final long DEFAULT_TTL_MILLIS = 5_000;
+    public static final int DEFAULT_MAX_WATCHED_FOLDERS = 8_192;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileAttributeCache.class);
+
+    private final long ttlMillis;
+    private final int maxWatchedFolders;
+    private final Map<Path, Entry> entries;
+    private final Set<Path> watchedFolders = ConcurrentHashMap.newKeySet();
+    private final Set<Path> unwatchableFolders = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean watchLimitReached = new AtomicBoolean();
+    private final List<Consumer<Path>> changeListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Path>> overflowListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final WatchService watchService;
+
+    /**
+     * Creates a cache watching at most {@link #DEFAULT_MAX_WATCHED_FOLDERS} folders.
+     *
+     * @param maxEntries the maximum number of cached entries before the least recently used ones are evicted
+     * @param ttlMillis  the maximum age of a cached entry in milliseconds
+     */
+    public FileAttributeCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, DEFAULT_MAX_WATCHED_FOLDERS);
+    }
+
+    /**
+     * @param maxEntries        the maximum number of cached entries before the least recently used ones are evicted
+     * @param ttlMillis         the maximum age of a cached entry in milliseconds
+     * @param maxWatchedFolders the maximum number of folders to watch and to remember as not watchable, each
+     */
+    public FileAttributeCache(final int maxEntries, long ttlMillis, int maxWatchedFolders) {
+        this.ttlMillis = ttlMillis;
+        this.maxWatchedFolders = maxWatchedFolders;
+        this.entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.watchService = createWatchService();
+    }
+
+    /**
+     * Returns the attributes of the given file, either from the cache or freshly read from the file system.
+     *
+     * @param file the file to get the attributes for
+     * @return the file's attributes; {@link FileAttributes#missing()} if the file does not exist
+     */
+    public FileAttributes get(File file) {
+        Path path = toKey(file);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+
+        if (entry != null && System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+            hits.incrementAndGet();
+            return entry.attributes;
+        }
+
+        misses.incrementAndGet();
+        FileAttributes attributes = read(path);
+        store(path, attributes);
+        return attributes;
+    }
+
+    /**
+     * Puts already known attributes into the cache, e.g. those read while listing a folder.
+     *
+     * @param file       the file the attributes belong to
+     * @param attributes the file's attributes
+     */
+    public void put(File file, FileAttributes attributes) {
+        store(toKey(file), attributes);
+    }
+
+    /**
+     * Removes the cached attributes of the given file. Must be called after every modification of the file.
+     *
+     * @param file the modified file
+     */
+    public void invalidate(File file) {
+        invalidate(toKey(file));
+    }
+
+    /**
+     * Removes the cached attributes of the given file or folder and of everything below it.
+     *
+     * @param file the modified file or folder
+     */
+    public void invalidateTree(File file) {
+        invalidateTree(toKey(file));
+    }
+
+    /**
+     * Registers a listener for the changes reported by the file system watcher, e.g. to invalidate other caches.
+     *
+     * @param listener called with the path of every changed file or folder; everything below the path may have
+     *                 changed, too
+     */
+    public void addChangeListener(Consumer<Path> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener for folders whose change events have been lost by the file system watcher, so the changes
+     * below them are unknown.
+     *
+     * @param listener called with the folder, after the {@link #addChangeListener(Consumer) change listeners} have
+     *                 been called for it
+     */
+    public void addOverflowListener(Consumer<Path> listener) {
+        overflowListeners.add(listener);
+    }
+
+    /**
+     * Watches a folder, even if it has no cached entries yet, so the changes of its children are reported to the
+     * {@link #addChangeListener(Consumer) change listeners}.
+     *
+     * @param folder the folder to watch
+     * @return {@code true} if the folder is watched
+     */
+    public boolean watch(File folder) {
+        Path path = toKey(folder);
+        watchFolder(path);
+        return watchedFolders.contains(path);
+    }
+
+    /**
+     * @param folder a folder
+     * @return if the changes of the folder's direct children are reported to the {@link
+     * #addChangeListener(Consumer) change listeners}
+     */
+    public boolean isWatched(File folder) {
+        return watchedFolders.contains(toKey(folder));
+    }
+
+    /**
+     * Removes all cached attributes.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that had to read from the file system
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return current number of cached entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        clear();
+    }
+
+    private void store(Path path, FileAttributes attributes) {
+        watchFolder(path.getParent());
+        synchronized (entries) {
+            entries.put(path, new Entry(attributes));
+        }
+    }
+
+    private Entry invalidate(Path path) {
+        synchronized (entries) {
+            return entries.remove(path);
+        }
+    }
+
+    private void invalidateTree(Path root) {
+        synchronized (entries) {
+            Iterator<Path> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(root)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void notifyChanged(Path path) {
+        notifyListeners(changeListeners, path);
+    }
+
+    /**
+     * Calls every listener, even if one fails, so a broken listener neither starves the others nor stops the watcher.
+     */
+    private static void notifyListeners(List<Consumer<Path>> listeners, Path path) {
+        for (Consumer<Path> listener : listeners) {
+            try {
+                listener.accept(path);
+            } catch (RuntimeException e) {
+                LOGGER.error("Listener failed for change of {}", path, e);
+            }
+        }
+    }
+
+    private static FileAttributes read(Path path) {
+        try {
+            return FileAttributes.of(Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) { //NOSONAR
+            return FileAttributes.missing();
+        } catch (IOException e) {
+            LOGGER.warn("Could not read attributes of {}", path, e);
+            return FileAttributes.missing();
+        }
+    }
+
+    private static Path toKey(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private WatchService createWatchService() {
+        try {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(() -> processEvents(service), "webdav-attribute-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+            return service;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("File system watching not available, relying on time-to-live of cached attributes", e);
+            return null;
+        }
+    }
+
+    private void watchFolder(Path folder) {
+        if (watchService == null || folder == null || watchedFolders.contains(folder)
+                || unwatchableFolders.contains(folder)) {
+            return;
+        }
+        if (watchedFolders.size() >= maxWatchedFolders) {
+            if (watchLimitReached.compareAndSet(false, true)) {
+                LOGGER.warn("Watching {} folders, relying on time-to-live of cached attributes in further folders",
+                        maxWatchedFolders);
+            }
+            return;
+        }
+
+        try {
+            folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedFolders.add(folder);
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOGGER.debug("Could not watch folder {}", folder, e);
+            if (unwatchableFolders.size() < maxWatchedFolders) {
+                unwatchableFolders.add(folder);
+            }
+        }
+    }
+
+    private void processEvents(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path folder = (Path) key.watchable();
+                try {
+                    processEvents(folder, key);
+                } catch (RuntimeException e) {
+                    // keep the only watcher thread alive, the cache would otherwise silently rely on the TTL only
+                    LOGGER.error("Could not process file system events for {}", folder, e);
+                }
+
+                if (!key.reset()) {
+                    watchedFolders.remove(folder);
+                    invalidateTree(folder);
+                    notifyChanged(folder);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) { //NOSONAR
+            LOGGER.debug("Attribute cache watcher stopped");
+        }
+    }
+
+    private void processEvents(Path folder, WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOGGER.debug("Lost file system events for {}, invalidating folder", folder);
+                invalidateTree(folder);
+                notifyChanged(folder);
+                notifyListeners(overflowListeners, folder);
+            } else if (AtomicFileWriter.isTemporaryFile((Path) event.context())) {
+                // uploads in progress are no resources, the final rename is reported for the target
+                invalidate(folder.resolve((Path) event.context()));
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                Path deleted = folder.resolve((Path) event.context());
+                Entry removed = invalidate(deleted);
+                if ((removed != null && removed.attributes.isDirectory()) || watchedFolders.contains(deleted)) {
+                    // a deleted or renamed folder leaves its children behind in the cache
+                    invalidateTree(deleted);
+                }
+                notifyChanged(deleted);
+            } else {
+                invalidate(folder.resolve((Path) event.context()));
+                notifyChanged(folder.resolve((Path) event.context()));
+            }
+            invalidate(folder);
+        }
+    }
+
+    private static final class Entry {
+        private final FileAttributes attributes;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Entry(FileAttributes attributes) {
+            this.attributes = attributes;
+        }
+    }
+}
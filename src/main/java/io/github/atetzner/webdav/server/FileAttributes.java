@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An immutable snapshot of the attributes of a single file or folder, as held by the {@link FileAttributeCache}.
+ */
+public final class FileAttributes {
+
+    private static final FileAttributes MISSING = new FileAttributes(false, false, 0, 0, 0, null);
+
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long creationTime;
+    private final Object fileKey;
+
+    private FileAttributes(boolean exists, boolean directory, long size, long lastModified, long creationTime,
+                           Object fileKey) {
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.creationTime = creationTime;
+        this.fileKey = fileKey;
+    }
+
+    /**
+     * @param attributes the attributes read from the file system
+     * @return a snapshot of the given attributes
+     */
+    public static FileAttributes of(BasicFileAttributes attributes) {
+        return new FileAttributes(true, attributes.isDirectory(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), attributes.creationTime().toMillis(), attributes.fileKey());
+    }
+
+    /**
+     * @return the attributes of a file that does not exist
+     */
+    public static FileAttributes missing() {
+        return MISSING;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * An entity tag derived from the file's identity (inode), size and modification time, which changes whenever the
+     * file's content is replaced.
+     *
+     * @return the entity tag without quotes or {@code null} if the file does not exist
+     */
+    public String getETag() {
+        if (!exists) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (fileKey != null) {
+            sb.append(Integer.toHexString(fileKey.hashCode())).append('-');
+        }
+        sb.append(Long.toHexString(size)).append('-').append(Long.toHexString(lastModified));
+        return sb.toString();
+    }
+
+    /**
+     * @return the file system's key of the file (e.g. device and inode) or {@code null} if not available
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+}
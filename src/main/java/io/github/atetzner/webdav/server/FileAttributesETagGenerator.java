@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.http11.DefaultETagGenerator;
+import io.milton.http.http11.ETagGenerator;
+import io.milton.resource.Resource;
+
+/**
+ * Generates the ETags of the served files and folders from their {@link FileAttributes#getETag() cached attributes},
+ * so milton can answer conditional requests ({@code If-None-Match}, {@code If-Match}) without touching the file system.
+ */
+public class FileAttributesETagGenerator implements ETagGenerator {
+
+    private final ETagGenerator fallback = new DefaultETagGenerator();
+
+    @Override
+    public String generateEtag(Resource r) {
+        if (r instanceof MiltonFileResource) {
+            return ((MiltonFileResource) r).getAttributes().getETag();
+        } else if (r instanceof MiltonFolderResource) {
+            return ((MiltonFolderResource) r).getAttributes().getETag();
+        }
+        return fallback.generateEtag(r);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A cache of the content of frequently requested files, bounded by the total size of the cached content and evicting
+ * the least recently used files first. Files up to a maximum size are copied into direct buffers, larger files are not
+ * cached at all and streamed by the {@link FileContentTransfer}. The files are not memory mapped, as a cached mapping
+ * would keep a file from being replaced or deleted on Windows for as long as it is cached.
+ * <p>
+ * A file is only cached on its second request while it is still remembered as candidate, so a client reading a whole
+ * share once does not evict the hot files. Every lookup compares the cached size and modification time with the
+ * file's current {@link FileAttributes}; in addition the resources and the {@link FileAttributeCache}'s file system
+ * watcher invalidate changed files right away.
+ */
+public class FileContentCache {
+
+    public static final int DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileContentCache.class);
+
+    /**
+     * Number of files requested once, that are remembered as candidates for the cache.
+     */
+    private static final int MAX_CANDIDATES = 10_000;
+
+    private final long maxBytes;
+    private final int maxFileSize;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Boolean> candidates = new LinkedHashMap<Path, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes    the maximum total size of the cached content in bytes, {@code 0} to disable the cache
+     * @param maxFileSize the maximum size of files cached at all
+     */
+    public FileContentCache(long maxBytes, int maxFileSize) {
+        isTrue(maxBytes >= 0, "'maxBytes' may not be negative");
+        isTrue(maxFileSize >= 0, "'maxFileSize' may not be negative");
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Returns the content of a file from the cache, loading it if the file has been requested before.
+     *
+     * @param file       the file to get the content of
+     * @param attributes the current attributes of the file
+     * @return a read-only buffer with the file's content, positioned at the start, or {@code null} if the content
+     * is not cached and has to be read from the file
+     */
+    public ByteBuffer get(File file, FileAttributes attributes) {
+        long size = attributes.getSize();
+        if (maxBytes == 0 || size > maxFileSize || size > maxBytes) {
+            return null;
+        }
+
+        Path path = toKey(file);
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.size == size && entry.lastModified == attributes.getLastModified()) {
+                hits.incrementAndGet();
+                return entry.content.duplicate();
+            } else if (entry != null) {
+                remove(path);
+            }
+
+            misses.incrementAndGet();
+            if (candidates.remove(path) == null) {
+                candidates.put(path, Boolean.TRUE);
+                return null;
+            }
+        }
+
+        // loaded without holding the lock, concurrent loads of the same file just replace each other
+        ByteBuffer content = load(path, size);
+        if (content == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(path, new Entry(content, size, attributes.getLastModified()));
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+            evict();
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Removes a file from the cache. Must be called after every modification of the file.
+     *
+     * @param file the modified file
+     */
+    public void invalidate(File file) {
+        Path path = toKey(file);
+        synchronized (this) {
+            remove(path);
+            candidates.remove(path);
+        }
+    }
+
+    /**
+     * Removes a file or all files below a folder from the cache.
+     *
+     * @param file the modified file or folder
+     */
+    public synchronized void invalidateTree(File file) {
+        Path root = toKey(file);
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Entry> entry = it.next();
+            if (entry.getKey().startsWith(root)) {
+                bytes -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached content.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        candidates.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups of cacheable files, that had to read the file
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total size of the cached content in bytes
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private void remove(Path path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private ByteBuffer load(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != size) {
+                // changed since the attributes were read, the next lookup with fresh attributes loads it
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (NoSuchFileException e) { //NOSONAR
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Could not load {} into the content cache", path, e);
+            return null;
+        }
+    }
+
+    private static Path toKey(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private static final class Entry {
+        private final ByteBuffer content;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(ByteBuffer content, long size, long lastModified) {
+            this.content = content;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.Range;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.HttpOutput;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a file or a region of a file to a response stream through a buffer taken from a shared
+ * {@link ByteBufferPool}, so no buffers are allocated per request. If the stream is jetty's {@link HttpOutput}, the
+ * buffer is a direct one handed to jetty, which writes it to the socket without copying it through the heap.
+ * <p>
+ * The content is deliberately not memory mapped: a mapping is only released when it is garbage collected, which keeps
+ * files from being replaced or deleted on Windows, and reading a mapping of a file truncated by another process
+ * crashes with an {@link InternalError} instead of failing with an {@link IOException}.
+ * <p>
+ * Regions of at least {@link #getAsyncThreshold() asyncThreshold} bytes are handed to an {@link AsyncFileSender}
+ * instead, if the {@link MiltonHandler} allows it and the region is the whole response body, so no request thread is
+ * blocked by slow clients.
+ */
+public class FileContentTransfer {
+
+    private final ByteBufferPool bufferPool;
+    private final int bufferSize;
+    private long asyncThreshold = -1;
+
+    /**
+     * @param bufferPool the pool to take copy buffers from
+     * @param bufferSize the size of the copy buffers in bytes
+     */
+    public FileContentTransfer(ByteBufferPool bufferPool, int bufferSize) {
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+    }
+
+    public long getAsyncThreshold() {
+        return asyncThreshold;
+    }
+
+    /**
+     * @param asyncThreshold minimum number of bytes to send asynchronously, if possible, or {@code -1} to always send
+     *                       on the calling thread
+     */
+    public void setAsyncThreshold(long asyncThreshold) {
+        this.asyncThreshold = asyncThreshold;
+    }
+
+    /**
+     * Sends the given range of the file. A {@code null} range sends the whole file. A range without start is treated as
+     * suffix range (the last {@link Range#getFinish() finish} bytes), a range without finish extends to the end of the
+     * file.
+     *
+     * @param file  the file to send
+     * @param range the range to send or {@code null}
+     * @param out   the stream to send the content to
+     * @throws IOException if reading the file or writing to the stream fails
+     */
+    public void send(File file, Range range, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] region = resolve(range, channel.size());
+            long start = region[0];
+            long end = region[1];
+            if (start < end && !deferred(file, start, end - start, out)) {
+                transfer(channel, start, end - start, out);
+            }
+        }
+    }
+
+    /**
+     * Sends the given range of content already in memory, e.g. from the {@link FileContentCache}. The range is
+     * interpreted as for {@link #send(File, Range, OutputStream)}.
+     *
+     * @param file    the file the content belongs to
+     * @param content the file's content from its position to its limit; it is not changed
+     * @param range   the range to send or {@code null}
+     * @param out     the stream to send the content to
+     * @throws IOException if writing to the stream fails
+     */
+    public void send(File file, ByteBuffer content, Range range, OutputStream out) throws IOException {
+        long[] region = resolve(range, content.remaining());
+        if (region[0] >= region[1]) {
+            return;
+        }
+        ByteBuffer slice = content.slice();
+        slice.limit((int) region[1]);
+        slice.position((int) region[0]);
+
+        if (asyncThreshold >= 0 && slice.remaining() >= asyncThreshold && out instanceof HttpOutput
+                && AsyncFileSender.defer(file, slice, (HttpOutput) out)) {
+            return;
+        }
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).write(slice);
+            return;
+        }
+        ByteBuffer buffer = bufferPool.acquire(bufferSize, false);
+        try {
+            while (slice.hasRemaining()) {
+                int length = Math.min(buffer.capacity(), slice.remaining());
+                slice.get(buffer.array(), buffer.arrayOffset(), length);
+                out.write(buffer.array(), buffer.arrayOffset(), length);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return start (inclusive) and end (exclusive) of the range within content of the given size
+     */
+    private static long[] resolve(Range range, long size) {
+        if (range == null) {
+            return new long[]{0, size};
+        } else if (range.getStart() == null) {
+            long suffixLength = range.getFinish() == null ? size : range.getFinish();
+            return new long[]{Math.max(0, size - suffixLength), size};
+        } else {
+            long end = range.getFinish() == null ? size : Math.min(size, range.getFinish() + 1);
+            return new long[]{range.getStart(), end};
+        }
+    }
+
+    private boolean deferred(File file, long position, long count, OutputStream out) throws IOException {
+        return asyncThreshold >= 0 && count >= asyncThreshold && out instanceof HttpOutput
+                && AsyncFileSender.defer(file, position, count, (HttpOutput) out, bufferPool, bufferSize);
+    }
+
+    private void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        // jetty writes direct buffers to the socket as they are, other streams need a heap buffer to write from
+        boolean direct = out instanceof HttpOutput;
+        ByteBuffer buffer = bufferPool.acquire(bufferSize, direct);
+        try {
+            long remaining = count;
+            long current = position;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer, current);
+                if (read <= 0) {
+                    throw new EOFException("File was truncated while sending its content");
+                }
+                buffer.flip();
+                if (direct) {
+                    // blocks until jetty has written the buffer, so it can be refilled afterwards
+                    ((HttpOutput) out).write(buffer);
+                } else {
+                    out.write(buffer.array(), buffer.arrayOffset(), read);
+                }
+                current += read;
+                remaining -= read;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
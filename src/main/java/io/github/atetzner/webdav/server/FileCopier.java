@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files on the server side, using the cheapest strategy available:
+ * <ol>
+ * <li>a copy-on-write clone of the file's extents ({@link CopyStrategy#REFLINK}) on file systems supporting it, like
+ * btrfs or XFS. Java has no API for this, so GNU {@code cp --reflink=always} is used on Linux for files above a
+ * configurable size (starting a process is more expensive than copying small files). Once {@code cp} reports that
+ * cloning is not supported between two file systems, it is not tried again for them</li>
+ * <li>{@link Files#copy} ({@link CopyStrategy#NATIVE}), which lets the operating system copy the data</li>
+ * <li>streaming the content through a {@link FileChannel} ({@link CopyStrategy#STREAM})</li>
+ * </ol>
+ * The number of files copied with each strategy is counted.
+ */
+public class FileCopier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCopier.class);
+
+    private static final boolean LINUX = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux");
+
+    /**
+     * Messages of {@code cp} in the C locale for errors meaning that cloning is not possible between two file systems
+     * at all (EOPNOTSUPP, EXDEV, EINVAL, ENOTTY), unlike e.g. a missing file or a full disk.
+     */
+    private static final List<String> REFLINK_UNSUPPORTED_ERRORS = List.of("Operation not supported",
+            "Invalid cross-device link", "Invalid argument", "Inappropriate ioctl for device");
+
+    private final long reflinkMinSize;
+    private final Map<CopyStrategy, AtomicLong> counters = new EnumMap<>(CopyStrategy.class);
+    private final Set<List<FileStore>> reflinkUnsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param reflinkMinSize minimum size of a file in bytes to try a copy-on-write clone for; negative to never try
+     */
+    public FileCopier(long reflinkMinSize) {
+        this.reflinkMinSize = reflinkMinSize;
+        for (CopyStrategy strategy : CopyStrategy.values()) {
+            counters.put(strategy, new AtomicLong());
+        }
+    }
+
+    /**
+     * Copies a single file, replacing the target if it exists. The last modified time is preserved.
+     *
+     * @param source the file to copy
+     * @param target the copy to create
+     * @return the strategy used to copy the file
+     * @throws IOException if copying fails
+     */
+    public CopyStrategy copyFile(File source, File target) throws IOException {
+        return copyFile(source.toPath(), target.toPath(), source.length());
+    }
+
+    /**
+     * @param strategy the strategy
+     * @return number of files copied with the given strategy
+     */
+    public long getCopyCount(CopyStrategy strategy) {
+        return counters.get(strategy).get();
+    }
+
+    /**
+     * Copies a single file of known size, replacing the target if it exists. The last modified time is preserved.
+     *
+     * @param source the file to copy
+     * @param target the copy to create
+     * @param size   the size of the source file
+     * @return the strategy used to copy the file
+     * @throws IOException if copying fails
+     */
+    public CopyStrategy copyFile(Path source, Path target, long size) throws IOException {
+        CopyStrategy strategy;
+        if (reflink(source, target, size)) {
+            strategy = CopyStrategy.REFLINK;
+        } else if (nativeCopy(source, target)) {
+            strategy = CopyStrategy.NATIVE;
+        } else {
+            stream(source, target);
+            strategy = CopyStrategy.STREAM;
+        }
+
+        counters.get(strategy).incrementAndGet();
+        LOGGER.debug("Copied {} to {} using {}", source, target, strategy);
+        return strategy;
+    }
+
+    private boolean reflink(Path source, Path target, long size) throws IOException {
+        if (!LINUX || reflinkMinSize < 0 || size < reflinkMinSize) {
+            return false;
+        }
+
+        List<FileStore> stores = List.of(Files.getFileStore(source),
+                Files.getFileStore(target.toAbsolutePath().getParent()));
+        if (reflinkUnsupported.contains(stores)) {
+            return false;
+        }
+
+        ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", "--",
+                source.toString(), target.toString())
+                .redirectErrorStream(true);
+        builder.environment().put("LC_ALL", "C");
+        Process process = builder.start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() == 0) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cloning " + source, e);
+        }
+
+        if (REFLINK_UNSUPPORTED_ERRORS.stream().anyMatch(output::contains)) {
+            LOGGER.info("Copy-on-write clones not available from {} to {}, copying files between these file systems",
+                    stores.get(0), stores.get(1));
+            reflinkUnsupported.add(stores);
+        } else {
+            LOGGER.debug("Could not clone {}, copying it: {}", source, output.trim());
+        }
+        return false;
+    }
+
+    private static boolean nativeCopy(Path source, Path target) {
+        try {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Native copy of {} failed, streaming content", source, e);
+            return false;
+        }
+    }
+
+    private static void stream(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        FileTime lastModified = Files.getLastModifiedTime(source);
+        Files.setLastModifiedTime(target, lastModified);
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the HTML listing of a folder shown to browsers. Listings are split into pages of a limited number of entries
+ * and can be sorted by name, size or modification date. Only the entries of the requested page are rendered, and when
+ * sorting by name, only their attributes are read from the file system. Each page is written directly to the client
+ * and kept in a cache limited by the total size of the cached pages. Cached pages are keyed by the folder's path and
+ * modification time, so they are replaced as soon as an entry is added to or removed from the folder; as the sizes
+ * and dates of the entries do not change the folder's modification time, pages additionally expire after a
+ * time-to-live.
+ * <p>
+ * Supported query parameters: {@code offset}, {@code limit}, {@code sort} ({@code name}, {@code size} or {@code
+ * modified}) and {@code order} ({@code asc} or {@code desc}).
+ */
+public class FolderListingRenderer {
+
+    public static final int DEFAULT_LIMIT = 1_000;
+    public static final int MAX_LIMIT = 10_000;
+    public static final long DEFAULT_MAX_CACHED_BYTES = 16L * 1024 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = 5_000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderListingRenderer.class);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final long maxCachedBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, CachedPage> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long cachedBytes;
+
+    /**
+     * @param maxCachedBytes the maximum total size of all cached pages before the least recently used ones are evicted
+     * @param ttlMillis      the maximum age of a cached page in milliseconds
+     */
+    public FolderListingRenderer(long maxCachedBytes, long ttlMillis) {
+        this.maxCachedBytes = maxCachedBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Writes a page of the listing of the given folder.
+     *
+     * @param folder       the folder to list
+     * @param lastModified the modification time of the folder
+     * @param relativePath the path of the folder relative to the served root folder
+     * @param params       the query parameters of the request, may be {@code null}
+     * @param out          the stream to write the page to
+     * @throws IOException if reading the folder or writing the page fails
+     */
+    public void render(File folder, long lastModified, Path relativePath, Map<String, String> params,
+                       OutputStream out) throws IOException {
+        Page page = Page.of(params);
+        String key = folder.getAbsolutePath() + '\0' + lastModified + '\0' + page;
+
+        CachedPage cachedPage;
+        synchronized (pages) {
+            cachedPage = pages.get(key);
+        }
+        if (cachedPage != null && System.currentTimeMillis() - cachedPage.renderedAt < ttlMillis) {
+            hits.incrementAndGet();
+            out.write(cachedPage.content);
+            return;
+        }
+
+        misses.incrementAndGet();
+        CapturingOutputStream capture = new CapturingOutputStream(out, maxCachedBytes / 16);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(capture, StandardCharsets.UTF_8));
+        renderPage(folder, relativePath, page, writer);
+        writer.flush();
+
+        byte[] content = capture.getCaptured();
+        if (content != null) {
+            store(key, new CachedPage(content));
+        }
+    }
+
+    /**
+     * @return the number of pages served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of pages rendered from the file system
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Removes all cached pages.
+     */
+    public void clear() {
+        synchronized (pages) {
+            pages.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    private void store(String key, CachedPage page) {
+        synchronized (pages) {
+            CachedPage previous = pages.put(key, page);
+            if (previous != null) {
+                cachedBytes -= previous.content.length;
+            }
+            cachedBytes += page.content.length;
+
+            Iterator<CachedPage> eldest = pages.values().iterator();
+            while (cachedBytes > maxCachedBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().content.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static void renderPage(File folder, Path relativePath, Page page, Writer w) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Entry> entries = readEntries(folder.toPath(), page.sort);
+        entries.sort(page.descending ? page.sort.comparator.reversed() : page.sort.comparator);
+
+        int from = Math.min(page.offset, entries.size());
+        int to = (int) Math.min((long) from + page.limit, entries.size());
+
+        String folderHref = toHref(relativePath);
+        String title = escape("/" + relativePath.toString().replace(File.separatorChar, '/'));
+        w.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Folder listing for " + title
+                + "</title></head>\n<body>\n<h1>Folder listing for " + title + "</h1>\n");
+        w.write("<p>Entries " + (to > from ? from + 1 : 0) + " to " + to + " of " + entries.size() + "</p>\n");
+        w.write("<table>\n<tr>");
+        for (Sort sort : Sort.values()) {
+            boolean descending = sort == page.sort && !page.descending;
+            w.write("<th><a href=\"" + folderHref + "?sort=" + sort.parameter + "&amp;order="
+                    + (descending ? "desc" : "asc") + "&amp;limit=" + page.limit + "\">" + sort.title + "</a></th>");
+        }
+        w.write("</tr>\n");
+        if (!relativePath.toString().isEmpty()) {
+            w.write("<tr><td><a href=\"" + toHref(relativePath.getParent()) + "\">..</a></td><td></td><td></td>"
+                    + "</tr>\n");
+        }
+
+        for (Entry entry : entries.subList(from, to)) {
+            writeRow(entry, folderHref, w);
+        }
+        w.write("</table>\n<p>");
+
+        String pageHref = folderHref + "?sort=" + page.sort.parameter + "&amp;order="
+                + (page.descending ? "desc" : "asc") + "&amp;limit=" + page.limit + "&amp;offset=";
+        if (from > 0) {
+            w.write("<a href=\"" + pageHref + Math.max(0, from - page.limit) + "\">Previous</a> ");
+        }
+        if (to < entries.size()) {
+            w.write("<a href=\"" + pageHref + to + "\">Next</a>");
+        }
+        w.write("</p>\n</body></html>\n");
+
+        LOGGER.debug("Rendered entries {} to {} of {} in {} ms", from, to, folder, System.currentTimeMillis() - start);
+    }
+
+    private static void writeRow(Entry entry, String folderHref, Writer w) throws IOException {
+        BasicFileAttributes attributes = entry.getAttributes();
+        boolean directory = attributes != null && attributes.isDirectory();
+        String suffix = directory ? "/" : "";
+
+        w.write("<tr><td><a href=\"" + folderHref + encodePathSegment(entry.name) + suffix + "\">" + escape(entry.name)
+                + suffix + "</a></td><td>");
+        if (attributes != null && !directory) {
+            w.write(Long.toString(attributes.size()));
+        }
+        w.write("</td><td>");
+        if (attributes != null) {
+            w.write(DATE_FORMAT.format(attributes.lastModifiedTime().toInstant()));
+        }
+        w.write("</td></tr>\n");
+    }
+
+    private static List<Entry> readEntries(Path folder, Sort sort) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> folderContents = Files.newDirectoryStream(folder)) {
+            for (Path child : folderContents) {
+                if (AtomicFileWriter.isTemporaryFile(child)) {
+                    continue;
+                }
+                Entry entry = new Entry(child);
+                if (sort != Sort.NAME) {
+                    // the attributes of all entries are needed for sorting
+                    entry.getAttributes();
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static String toHref(Path relativePath) {
+        StringBuilder href = new StringBuilder("/");
+        if (relativePath != null) {
+            for (Path name : relativePath) {
+                if (!name.toString().isEmpty()) {
+                    href.append(encodePathSegment(name.toString())).append('/');
+                }
+            }
+        }
+        return href.toString();
+    }
+
+    private static String encodePathSegment(String segment) {
+        StringBuilder encoded = new StringBuilder(segment.length());
+        for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                    || c == '_' || c == '~') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\'':
+                    escaped.append("&#39;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * The columns a listing can be sorted by.
+     */
+    private enum Sort {
+        NAME("name", "Name", Comparator.comparing((Entry entry) -> entry.name, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(entry -> entry.name)),
+        SIZE("size", "Size", Comparator.comparingLong(Entry::getSize)),
+        MODIFIED("modified", "Last modified", Comparator.comparingLong(Entry::getLastModified));
+
+        private final String parameter;
+        private final String title;
+        private final Comparator<Entry> comparator;
+
+        Sort(String parameter, String title, Comparator<Entry> comparator) {
+            this.parameter = parameter;
+            this.title = title;
+            this.comparator = comparator;
+        }
+    }
+
+    /**
+     * The requested page of a listing.
+     */
+    private static final class Page {
+
+        private final int offset;
+        private final int limit;
+        private final Sort sort;
+        private final boolean descending;
+
+        private Page(int offset, int limit, Sort sort, boolean descending) {
+            this.offset = offset;
+            this.limit = limit;
+            this.sort = sort;
+            this.descending = descending;
+        }
+
+        private static Page of(Map<String, String> params) {
+            if (params == null) {
+                params = Collections.emptyMap();
+            }
+            int offset = Math.max(0, parseInt(params.get("offset"), 0));
+            int limit = Math.min(MAX_LIMIT, Math.max(1, parseInt(params.get("limit"), DEFAULT_LIMIT)));
+            Sort sort = Sort.NAME;
+            for (Sort candidate : Sort.values()) {
+                if (candidate.parameter.equals(params.get("sort"))) {
+                    sort = candidate;
+                }
+            }
+            return new Page(offset, limit, sort, "desc".equals(params.get("order")));
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return offset + "/" + limit + "/" + sort + "/" + descending;
+        }
+    }
+
+    /**
+     * An entry of a listed folder, whose attributes are only read when needed.
+     */
+    private static final class Entry {
+
+        private final Path path;
+        private final String name;
+        private BasicFileAttributes attributes;
+        private boolean attributesRead;
+
+        private Entry(Path path) {
+            this.path = path;
+            this.name = path.getFileName().toString();
+        }
+
+        private BasicFileAttributes getAttributes() {
+            if (!attributesRead) {
+                attributesRead = true;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // e.g. a dangling symbolic link or an entry deleted in the meantime
+                    LOGGER.debug("Could not read attributes of {}", path, e);
+                }
+            }
+            return attributes;
+        }
+
+        private long getSize() {
+            BasicFileAttributes entryAttributes = getAttributes();
+            return entryAttributes == null || entryAttributes.isDirectory() ? -1 : entryAttributes.size();
+        }
+
+        private long getLastModified() {
+            BasicFileAttributes entryAttributes = getAttributes();
+            return entryAttributes == null ? 0 : entryAttributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * A rendered page.
+     */
+    private static final class CachedPage {
+
+        private final byte[] content;
+        private final long renderedAt = System.currentTimeMillis();
+
+        private CachedPage(byte[] content) {
+            this.content = content;
+        }
+    }
+
+    /**
+     * Passes everything through to the client and keeps a copy for the cache, unless the page gets too large.
+     */
+    private static final class CapturingOutputStream extends FilterOutputStream {
+
+        private final long maxCaptured;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        private CapturingOutputStream(OutputStream out, long maxCaptured) {
+            super(out);
+            this.maxCaptured = maxCaptured;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (captured != null) {
+                if (captured.size() + len > maxCaptured) {
+                    captured = null;
+                } else {
+                    captured.write(b, off, len);
+                }
+            }
+        }
+
+        private byte[] getCaptured() {
+            return captured == null ? null : captured.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An index of the recursive size and number of files of every folder below the served root folder, to answer the
+ * quota properties of RFC 4331 without walking the tree.
+ * <p>
+ * Once {@link #start() started}, the index is built by walking the tree in the background. Afterwards the resources
+ * keep it up to date: changed files are applied as deltas to the folder and its ancestors, moved, copied and deleted
+ * folders move, copy or drop the entries of their subtree. Paths reported by the {@link FileAttributeCache}'s file
+ * system watcher, e.g. for changes by other processes, are {@link #markChanged(File) marked} and reconciled against the
+ * file system a few seconds later, so bursts of changes are reconciled once.
+ * <p>
+ * Memory usage is one entry per folder plus the last applied sizes of up to 10,000 recently updated files. Until the
+ * index is built, {@link #getUsage(File)} returns {@code null}.
+ */
+public class FolderSizeIndex implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderSizeIndex.class);
+
+    private static final long RECONCILE_DELAY_MILLIS = 2_000;
+    private static final long USABLE_SPACE_TTL_MILLIS = 1_000;
+    private static final int MAX_APPLIED_SIZES = 10_000;
+
+    private final Path root;
+    private final long quotaBytes;
+    /**
+     * The folders' entries keyed by their absolute path, sorted so the subtree of a folder is a contiguous range.
+     */
+    private final NavigableMap<String, Entry> folders = new TreeMap<>();
+    private final Set<Path> changedPaths = new LinkedHashSet<>();
+    /**
+     * The sizes last applied for recently updated files, so concurrent updates of the same file apply their deltas one
+     * after the other instead of each from the size before all of them.
+     */
+    private final Map<Path, Long> appliedSizes = new LinkedHashMap<Path, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+            return size() > MAX_APPLIED_SIZES;
+        }
+    };
+    private volatile boolean ready = false;
+    private ScheduledExecutorService executor = null;
+    private long usableSpace;
+    private long usableSpaceReadAt = 0;
+
+    /**
+     * @param rootFolder the served root folder
+     * @param quotaBytes the maximum total size of all files below the root folder or {@code -1} for no quota, in which
+     *                   case the available bytes are the usable space of the file system
+     */
+    public FolderSizeIndex(File rootFolder, long quotaBytes) {
+        this.root = toKey(rootFolder);
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Starts building the index in the background and reconciling changed paths. Until started, all updates are
+     * ignored.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "webdav-folder-size-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::build);
+        executor.scheduleWithFixedDelay(this::reconcileChanged, RECONCILE_DELAY_MILLIS, RECONCILE_DELAY_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return if the index has been {@link #start() started}
+     */
+    public synchronized boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * @return if the index has been built and answers {@link #getUsage(File)}
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param folder a folder below the root folder
+     * @return the recursive size and number of files of the folder or {@code null} if the index is not built yet or
+     * the folder is unknown
+     */
+    public synchronized Usage getUsage(File folder) {
+        if (!ready) {
+            return null;
+        }
+        Entry entry = folders.get(toKey(folder).toString());
+        return entry == null ? null : new Usage(entry.bytes, entry.files);
+    }
+
+    /**
+     * @return the bytes still available: the remaining quota or, without quota, the usable space of the file system;
+     * {@code null} if unknown
+     */
+    public Long getAvailableBytes() {
+        if (quotaBytes < 0) {
+            return getUsableSpace();
+        }
+        Usage usage = getUsage(root.toFile());
+        return usage == null ? null : Math.max(0, quotaBytes - usage.getBytes());
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    /**
+     * Applies the change of a file to its folder and all ancestors. The new size is read under the index's lock and
+     * the delta is computed from the size last applied for the file, so concurrent changes of a file don't add up
+     * their deltas from the same old size.
+     *
+     * @param file    the changed file
+     * @param oldSize the size before the change as returned by {@link #sizeOf(File)}, used unless a later size of the
+     *                file has been applied already
+     */
+    public void updateFile(File file, long oldSize) {
+        Path path = toKey(file);
+        Path folder = path.getParent();
+        synchronized (this) {
+            long newSize = sizeOf(file);
+            Long appliedSize = appliedSizes.put(path, newSize);
+            long previousSize = appliedSize == null ? oldSize : appliedSize;
+            Entry entry = ready ? folders.get(folder.toString()) : null;
+            if (entry == null) {
+                // not indexed yet, the folder is reconciled once it is
+                appliedSizes.remove(path);
+                markChanged(folder);
+                return;
+            }
+            long bytesDelta = Math.max(0, newSize) - Math.max(0, previousSize);
+            long filesDelta = (newSize >= 0 ? 1 : 0) - (previousSize >= 0 ? 1 : 0);
+            entry.directBytes += bytesDelta;
+            entry.directFiles += filesDelta;
+            addToAncestors(folder, bytesDelta, filesDelta);
+        }
+    }
+
+    /**
+     * Moves the entries of a renamed folder and its subtree.
+     *
+     * @param source the folder's previous location
+     * @param target the folder's new location
+     */
+    public synchronized void folderMoved(File source, File target) {
+        if (!ready) {
+            markChanged(toKey(source));
+            markChanged(toKey(target));
+            return;
+        }
+        forgetAppliedSizes(toKey(source));
+        forgetAppliedSizes(toKey(target));
+        Map<String, Entry> subtree = removeSubtree(toKey(source));
+        Entry moved = subtree.get(toKey(source).toString());
+        if (moved != null) {
+            addToAncestors(toKey(source).getParent(), -moved.bytes, -moved.files);
+        }
+        addSubtree(toKey(source), toKey(target), subtree);
+    }
+
+    /**
+     * Copies the entries of a copied folder and its subtree.
+     *
+     * @param source the copied folder
+     * @param target the folder's copy
+     */
+    public synchronized void folderCopied(File source, File target) {
+        if (!ready) {
+            markChanged(toKey(target));
+            return;
+        }
+        Path sourceKey = toKey(source);
+        Map<String, Entry> subtree = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : subtreeOf(sourceKey).entrySet()) {
+            subtree.put(entry.getKey(), new Entry(entry.getValue()));
+        }
+        forgetAppliedSizes(toKey(target));
+        removeSubtree(toKey(target));
+        addSubtree(sourceKey, toKey(target), subtree);
+    }
+
+    /**
+     * Drops the entries of a deleted folder and its subtree.
+     *
+     * @param folder the deleted folder
+     */
+    public synchronized void folderDeleted(File folder) {
+        if (!ready) {
+            markChanged(toKey(folder));
+            return;
+        }
+        forgetAppliedSizes(toKey(folder));
+        Entry deleted = removeSubtree(toKey(folder)).get(toKey(folder).toString());
+        if (deleted != null) {
+            addToAncestors(toKey(folder).getParent(), -deleted.bytes, -deleted.files);
+        }
+    }
+
+    /**
+     * Marks a file or folder, that may have been changed in any way, to be reconciled with the file system soon.
+     *
+     * @param path the changed file or folder; everything below a folder may have changed, too
+     */
+    public void markChanged(File path) {
+        markChanged(toKey(path));
+    }
+
+    /**
+     * @param file a file or folder
+     * @return the size of the file or {@code -1} if it is no regular file or the index is not enabled, to pass to
+     * {@link #updateFile(File, long)} after changing the file
+     */
+    public long sizeOf(File file) {
+        if (!isEnabled()) {
+            return -1;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            return attributes.isDirectory() ? -1 : attributes.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        folders.clear();
+        changedPaths.clear();
+        appliedSizes.clear();
+        ready = false;
+    }
+
+    private synchronized void markChanged(Path path) {
+        if (executor != null && path.startsWith(root)) {
+            changedPaths.add(path);
+        }
+    }
+
+    private void build() {
+        long start = System.currentTimeMillis();
+        Map<String, Entry> scanned = scan(root);
+        synchronized (this) {
+            folders.clear();
+            folders.putAll(scanned);
+            appliedSizes.clear();
+            ready = true;
+        }
+        LOGGER.info("Indexed the sizes of {} folders in {} ms", scanned.size(), System.currentTimeMillis() - start);
+    }
+
+    private void reconcileChanged() {
+        Set<Path> paths;
+        synchronized (this) {
+            if (!ready || changedPaths.isEmpty()) {
+                return;
+            }
+            paths = new LinkedHashSet<>(changedPaths);
+            changedPaths.clear();
+        }
+
+        for (Path path : paths) {
+            try {
+                boolean indexed;
+                synchronized (this) {
+                    indexed = folders.containsKey(path.toString());
+                }
+                if (indexed || Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    reconcileTree(path);
+                } else if (!path.equals(root)) {
+                    reconcileFiles(path.getParent());
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not reconcile the folder sizes of {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the entries of a folder's subtree with a fresh scan.
+     */
+    private void reconcileTree(Path folder) {
+        Map<String, Entry> scanned = scan(folder);
+        Entry current = scanned.get(folder.toString());
+        synchronized (this) {
+            Entry previous = removeSubtree(folder).get(folder.toString());
+            folders.putAll(scanned);
+            forgetAppliedSizes(folder);
+            long bytesDelta = (current == null ? 0 : current.bytes) - (previous == null ? 0 : previous.bytes);
+            long filesDelta = (current == null ? 0 : current.files) - (previous == null ? 0 : previous.files);
+            addToAncestors(folder.getParent(), bytesDelta, filesDelta);
+        }
+    }
+
+    /**
+     * Recounts the files directly in a folder, leaving its sub folders as they are.
+     */
+    private void reconcileFiles(Path folder) {
+        long bytes = 0;
+        long files = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (!attributes.isDirectory() && !AtomicFileWriter.isTemporaryFile(child)) {
+                    bytes += attributes.size();
+                    files++;
+                }
+            }
+        } catch (NoSuchFileException e) { //NOSONAR
+            // the folder itself is gone, reconcile it as a whole
+            reconcileTree(folder);
+            return;
+        } catch (IOException e) {
+            LOGGER.debug("Could not list {}", folder, e);
+            return;
+        }
+
+        synchronized (this) {
+            Entry entry = folders.get(folder.toString());
+            if (entry == null) {
+                return;
+            }
+            appliedSizes.keySet().removeIf(path -> folder.equals(path.getParent()));
+            long bytesDelta = bytes - entry.directBytes;
+            long filesDelta = files - entry.directFiles;
+            entry.directBytes = bytes;
+            entry.directFiles = files;
+            addToAncestors(folder, bytesDelta, filesDelta);
+        }
+    }
+
+    /**
+     * Drops the applied sizes of the files below a folder whose entries are replaced.
+     */
+    private void forgetAppliedSizes(Path folder) {
+        appliedSizes.keySet().removeIf(path -> path.startsWith(folder));
+    }
+
+    private void addToAncestors(Path folder, long bytesDelta, long filesDelta) {
+        if (bytesDelta == 0 && filesDelta == 0) {
+            return;
+        }
+        for (Path current = folder; current != null && current.startsWith(root); current = current.getParent()) {
+            Entry entry = folders.get(current.toString());
+            if (entry != null) {
+                entry.bytes += bytesDelta;
+                entry.files += filesDelta;
+            }
+        }
+    }
+
+    /**
+     * @return the entries of the folder and all folders below it
+     */
+    private Map<String, Entry> subtreeOf(Path folder) {
+        Map<String, Entry> subtree = new HashMap<>();
+        String key = folder.toString();
+        Entry entry = folders.get(key);
+        if (entry != null) {
+            subtree.put(key, entry);
+        }
+        // all paths below the folder start with the prefix and sort before the prefix with its last character + 1
+        String prefix = key.endsWith(File.separator) ? key : key + File.separator;
+        String end = key.endsWith(File.separator)
+                ? key.substring(0, key.length() - 1) + (char) (File.separatorChar + 1)
+                : key + (char) (File.separatorChar + 1);
+        subtree.putAll(folders.subMap(prefix, true, end, false));
+        return subtree;
+    }
+
+    private Map<String, Entry> removeSubtree(Path folder) {
+        Map<String, Entry> removed = subtreeOf(folder);
+        folders.keySet().removeAll(removed.keySet());
+        return removed;
+    }
+
+    private void addSubtree(Path source, Path target, Map<String, Entry> subtree) {
+        String sourceKey = source.toString();
+        for (Map.Entry<String, Entry> entry : subtree.entrySet()) {
+            folders.put(target + entry.getKey().substring(sourceKey.length()), entry.getValue());
+        }
+        Entry added = subtree.get(sourceKey);
+        if (added != null) {
+            addToAncestors(target.getParent(), added.bytes, added.files);
+        }
+    }
+
+    private static Map<String, Entry> scan(Path folder) {
+        Map<String, Entry> result = new HashMap<>();
+        Deque<Entry> stack = new ArrayDeque<>();
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    stack.push(new Entry());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (AtomicFileWriter.isTemporaryFile(file)) {
+                        AtomicFileWriter.deleteIfStale(file, attrs);
+                    } else if (!attrs.isDirectory() && !stack.isEmpty()) {
+                        stack.peek().directBytes += attrs.size();
+                        stack.peek().directFiles++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    LOGGER.debug("Could not read {} while indexing folder sizes", file, exc);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    Entry entry = stack.pop();
+                    entry.bytes += entry.directBytes;
+                    entry.files += entry.directFiles;
+                    if (!stack.isEmpty()) {
+                        stack.peek().bytes += entry.bytes;
+                        stack.peek().files += entry.files;
+                    }
+                    result.put(dir.toString(), entry);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Could not index the folder sizes below {}", folder, e);
+        }
+        return result;
+    }
+
+    private synchronized Long getUsableSpace() {
+        long now = System.currentTimeMillis();
+        if (now - usableSpaceReadAt > USABLE_SPACE_TTL_MILLIS) {
+            usableSpace = root.toFile().getUsableSpace();
+            usableSpaceReadAt = now;
+        }
+        return usableSpace;
+    }
+
+    private static Path toKey(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * The recursive size and number of files of a folder.
+     */
+    public static final class Usage {
+        private final long bytes;
+        private final long files;
+
+        private Usage(long bytes, long files) {
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+    }
+
+    private static final class Entry {
+        private long bytes;
+        private long files;
+        private long directBytes;
+        private long directFiles;
+
+        private Entry() {
+        }
+
+        private Entry(Entry other) {
+            this.bytes = other.bytes;
+            this.files = other.files;
+            this.directBytes = other.directBytes;
+            this.directFiles = other.directFiles;
+        }
+    }
+}
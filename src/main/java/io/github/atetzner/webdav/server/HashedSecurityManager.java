@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.Auth;
+import io.milton.http.Request;
+import io.milton.http.SecurityManager;
+import io.milton.http.http11.auth.DigestResponse;
+import io.milton.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SecurityManager} checking passwords against {@link PasswordHash salted, deliberately slow hashes}. As milton
+ * authenticates every request, and basic auth sends the password with every request, verified credentials are
+ * remembered in a bounded cache for a limited time, so only the first request of a client pays for the hash. The cache
+ * holds a keyed HMAC of the password instead of the password itself, and credentials not found in the cache or
+ * differing from the cached ones are always checked against the hash.
+ */
+public class HashedSecurityManager implements SecurityManager {
+
+    public static final int DEFAULT_MAX_CACHED_CREDENTIALS = 10_000;
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedSecurityManager.class);
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    /**
+     * Checked for unknown users, so they take as long to reject as wrong passwords and do not reveal the user names.
+     */
+    private static final PasswordHash UNKNOWN_USER_HASH = PasswordHash.create(new char[0]);
+
+    private final Map<String, PasswordHash> users;
+    private final String realm;
+    private final long ttlMillis;
+    private final Map<String, VerifiedCredentials> verified;
+    private final byte[] macKey = new byte[32];
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong verificationNanos = new AtomicLong();
+
+    /**
+     * Creates a security manager with an empty realm and the default cache settings.
+     *
+     * @param users the users (key) and the hashes of their passwords (value)
+     */
+    public HashedSecurityManager(Map<String, PasswordHash> users) {
+        this(users, "", DEFAULT_MAX_CACHED_CREDENTIALS, DEFAULT_CACHE_TTL_MILLIS);
+    }
+
+    /**
+     * @param users      the users (key) and the hashes of their passwords (value)
+     * @param realm      the realm for basic authentication
+     * @param maxEntries the maximum number of cached credentials
+     * @param ttlMillis  how long verified credentials are cached in milliseconds
+     */
+    public HashedSecurityManager(Map<String, PasswordHash> users, String realm, final int maxEntries,
+                                 long ttlMillis) {
+        this.users = Collections.unmodifiableMap(new HashMap<>(users));
+        this.realm = realm;
+        this.ttlMillis = ttlMillis;
+        this.verified = new LinkedHashMap<String, VerifiedCredentials>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerifiedCredentials> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        new SecureRandom().nextBytes(macKey);
+    }
+
+    /**
+     * Hashes plain text credentials, e.g. those given on the command line.
+     *
+     * @param credentials the users (key) and their passwords (value)
+     * @return the users (key) and the hashes of their passwords (value)
+     */
+    public static Map<String, PasswordHash> hash(Map<String, String> credentials) {
+        Map<String, PasswordHash> result = new HashMap<>();
+        credentials.forEach((user, password) -> result.put(user, PasswordHash.create(password.toCharArray())));
+        return result;
+    }
+
+    /**
+     * Reads a credentials file. Each line holds a user and the {@link PasswordHash#toString() encoded hash} of the
+     * user's password in the form {@code USER:HASH}; empty lines and lines starting with {@code #} are ignored.
+     *
+     * @param file the credentials file
+     * @return the users (key) and the hashes of their passwords (value)
+     * @throws IOException if reading the file fails
+     */
+    public static Map<String, PasswordHash> readCredentialsFile(File file) throws IOException {
+        Map<String, PasswordHash> result = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                int separator = line.indexOf(':');
+                try {
+                    if (separator <= 0) {
+                        throw new IllegalArgumentException("Expected USER:HASH");
+                    }
+                    result.put(line.substring(0, separator), PasswordHash.parse(line.substring(separator + 1)));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("Ignoring invalid line {} of credentials file {}: {}", lineNumber, file,
+                            e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object authenticate(DigestResponse digestRequest) {
+        // digest authentication needs the plain passwords
+        return null;
+    }
+
+    @Override
+    public Object authenticate(String user, String password) {
+        PasswordHash hash = user == null ? null : users.get(user);
+        if (password == null) {
+            failures.incrementAndGet();
+            return null;
+        } else if (hash == null) {
+            UNKNOWN_USER_HASH.matches(password);
+            failures.incrementAndGet();
+            return null;
+        }
+
+        byte[] mac = mac(user, password);
+        VerifiedCredentials cached;
+        synchronized (verified) {
+            cached = verified.get(user);
+        }
+        if (cached != null && System.currentTimeMillis() - cached.verifiedAt < ttlMillis
+                && MessageDigest.isEqual(cached.mac, mac)) {
+            cacheHits.incrementAndGet();
+            return user;
+        }
+
+        cacheMisses.incrementAndGet();
+        long start = System.nanoTime();
+        boolean matches = hash.matches(password);
+        verificationNanos.addAndGet(System.nanoTime() - start);
+        verifications.incrementAndGet();
+
+        if (!matches) {
+            LOGGER.debug("Wrong password for user {}", user);
+            failures.incrementAndGet();
+            return null;
+        }
+        synchronized (verified) {
+            verified.put(user, new VerifiedCredentials(mac));
+        }
+        return user;
+    }
+
+    /**
+     * Checks credentials against the recently verified credentials only, never against the hash, so the check is cheap
+     * enough for every request, e.g. to identify the client before the request is admitted.
+     *
+     * @param user     the user name
+     * @param password the password
+     * @return {@code true} if the credentials have been verified recently, {@code false} if they are wrong or not
+     * known yet
+     */
+    public boolean isVerified(String user, String password) {
+        if (user == null || password == null || !users.containsKey(user)) {
+            return false;
+        }
+        VerifiedCredentials cached;
+        synchronized (verified) {
+            cached = verified.get(user);
+        }
+        return cached != null && System.currentTimeMillis() - cached.verifiedAt < ttlMillis
+                && MessageDigest.isEqual(cached.mac, mac(user, password));
+    }
+
+    @Override
+    public boolean authorise(Request request, Request.Method method, Auth auth, Resource resource) {
+        return auth != null && auth.getTag() != null;
+    }
+
+    @Override
+    public String getRealm(String host) {
+        return realm;
+    }
+
+    @Override
+    public boolean isDigestAllowed() {
+        return false;
+    }
+
+    /**
+     * Removes all cached credentials, so the next request of every user is checked against the hash again.
+     */
+    public void clearCache() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    /**
+     * @return the number of authentications answered from the cache
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of authentications checked against the hash
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return the number of failed authentications
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of checks against a hash
+     */
+    public long getVerificationCount() {
+        return verifications.get();
+    }
+
+    /**
+     * @return the total time spent checking against hashes in nanoseconds
+     */
+    public long getVerificationNanos() {
+        return verificationNanos.get();
+    }
+
+    private byte[] mac(String user, String password) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+            mac.update(user.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available in every Java runtime
+            throw new IllegalStateException("Cannot compute " + MAC_ALGORITHM, e);
+        }
+    }
+
+    /**
+     * Credentials verified against the hash at a given time.
+     */
+    private static final class VerifiedCredentials {
+
+        private final byte[] mac;
+        private final long verifiedAt = System.currentTimeMillis();
+
+        private VerifiedCredentials(byte[] mac) {
+            this.mac = mac;
+        }
+    }
+}
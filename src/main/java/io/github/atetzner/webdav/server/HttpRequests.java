@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.SecurityManager;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Helpers for the handlers answering requests in front of milton.
+ */
+public final class HttpRequests {
+
+    private HttpRequests() {
+    }
+
+    /**
+     * Checks the request's basic authentication credentials the same way milton does. Requests without valid
+     * credentials must be left to milton, which answers them with an authentication challenge.
+     *
+     * @param request         the request to check
+     * @param securityManager the server's security manager or {@code null} if authentication is disabled
+     * @return {@code true} if authentication is disabled or the request contains valid credentials
+     */
+    public static boolean isAuthenticated(HttpServletRequest request, SecurityManager securityManager) {
+        if (securityManager == null) {
+            return true;
+        }
+
+        String[] credentials = getBasicCredentials(request);
+        return credentials != null && securityManager.authenticate(credentials[0], credentials[1]) != null;
+    }
+
+    /**
+     * Returns the user of the request's basic authentication credentials, if they have been verified recently. The
+     * credentials are never checked against the password hash, so this is cheap enough for every request.
+     *
+     * @param request         the request
+     * @param securityManager the server's security manager or {@code null} if authentication is disabled
+     * @return the user or {@code null} if the request has no credentials, they are wrong or not verified yet or the
+     * security manager is no {@link HashedSecurityManager}
+     */
+    public static String getVerifiedUser(HttpServletRequest request, SecurityManager securityManager) {
+        if (!(securityManager instanceof HashedSecurityManager)) {
+            return null;
+        }
+        String[] credentials = getBasicCredentials(request);
+        return credentials != null
+                && ((HashedSecurityManager) securityManager).isVerified(credentials[0], credentials[1])
+                ? credentials[0] : null;
+    }
+
+    private static String[] getBasicCredentials(HttpServletRequest request) {
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) { //NOSONAR
+            return null;
+        }
+
+        int separator = decoded.indexOf(':');
+        if (separator < 0) {
+            return null;
+        }
+        return new String[]{decoded.substring(0, separator), decoded.substring(separator + 1)};
+    }
+
+    /**
+     * @param request the request
+     * @return the decoded path of the request or {@code null} if the request URI is invalid
+     */
+    public static String decodePath(HttpServletRequest request) {
+        try {
+            return new URI(request.getRequestURI()).getPath();
+        } catch (URISyntaxException e) { //NOSONAR
+            return null;
+        }
+    }
+}
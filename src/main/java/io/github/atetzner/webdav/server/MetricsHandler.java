@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.SecurityManager;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A jetty handler answering {@code GET} requests for a configured path with the {@link ServerMetrics} and the state of
+ * the resource factory's caches in the Prometheus text format. All other requests are left to the following handlers.
+ * If authentication is enabled, the metrics require valid credentials, too.
+ */
+public class MetricsHandler extends AbstractHandler {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final String path;
+    private final MiltonWebDAVResourceFactory resourceFactory;
+
+    /**
+     * @param path            the path to answer with the metrics, e.g. {@code /metrics}
+     * @param resourceFactory the resource factory whose metrics to expose
+     */
+    public MetricsHandler(String path, MiltonWebDAVResourceFactory resourceFactory) {
+        this.path = path;
+        this.resourceFactory = resourceFactory;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException {
+        if (!"GET".equals(request.getMethod()) || !path.equals(target)) {
+            return;
+        }
+        baseRequest.setHandled(true);
+
+        if (!HttpRequests.isAuthenticated(request, resourceFactory.getSecurityManager())) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"metrics\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        StringWriter metrics = new StringWriter();
+        writeMetrics(metrics);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        Writer w = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        w.write(metrics.toString());
+        w.flush();
+    }
+
+    private void writeMetrics(Writer w) throws IOException {
+        resourceFactory.getMetrics().writePrometheus(w);
+
+        FileAttributeCache attributeCache = resourceFactory.getAttributeCache();
+        ServerMetrics.writeSample(w, "webdav_attribute_cache_hits_total", "counter",
+                "File attributes served from the cache", attributeCache.getHitCount());
+        ServerMetrics.writeSample(w, "webdav_attribute_cache_misses_total", "counter",
+                "File attributes read from the file system", attributeCache.getMissCount());
+        ServerMetrics.writeSample(w, "webdav_attribute_cache_entries", "gauge", "Cached file attributes",
+                attributeCache.size());
+
+        FolderListingRenderer listingRenderer = resourceFactory.getListingRenderer();
+        ServerMetrics.writeSample(w, "webdav_listing_cache_hits_total", "counter",
+                "Folder listing pages served from the cache", listingRenderer.getHitCount());
+        ServerMetrics.writeSample(w, "webdav_listing_cache_misses_total", "counter",
+                "Folder listing pages rendered", listingRenderer.getMissCount());
+
+        FileContentCache contentCache = resourceFactory.getContentCache();
+        ServerMetrics.writeSample(w, "webdav_content_cache_hits_total", "counter",
+                "File contents served from the content cache", contentCache.getHitCount());
+        ServerMetrics.writeSample(w, "webdav_content_cache_misses_total", "counter",
+                "Cacheable file contents read from the file system", contentCache.getMissCount());
+        ServerMetrics.writeSample(w, "webdav_content_cache_bytes", "gauge", "Size of the cached file contents",
+                contentCache.getSize());
+        ServerMetrics.writeSample(w, "webdav_content_cache_entries", "gauge", "Files in the content cache",
+                contentCache.getEntryCount());
+
+        FileCopier fileCopier = resourceFactory.getFileCopier();
+        w.write("# HELP webdav_copies_total Files copied on the server by copy strategy\n");
+        w.write("# TYPE webdav_copies_total counter\n");
+        for (CopyStrategy strategy : CopyStrategy.values()) {
+            w.write("webdav_copies_total{strategy=\"" + strategy.name().toLowerCase(Locale.ROOT) + "\"} "
+                    + fileCopier.getCopyCount(strategy) + "\n");
+        }
+
+        ParallelTreeEngine treeEngine = resourceFactory.getTreeEngine();
+        ServerMetrics.writeSample(w, "webdav_tree_operations_running", "gauge",
+                "Recursive copies and deletes in flight", treeEngine.getRunningOperations().size());
+        ServerMetrics.writeSample(w, "webdav_tree_operations_total", "counter",
+                "Completed recursive copies and deletes", treeEngine.getCompletedOperations());
+        ServerMetrics.writeSample(w, "webdav_tree_folders_total", "counter",
+                "Folders processed by completed recursive copies and deletes", treeEngine.getProcessedFolders());
+        ServerMetrics.writeSample(w, "webdav_tree_files_total", "counter",
+                "Files processed by completed recursive copies and deletes", treeEngine.getProcessedFiles());
+        ServerMetrics.writeSample(w, "webdav_tree_bytes_total", "counter",
+                "Bytes of the files processed by completed recursive copies and deletes",
+                treeEngine.getProcessedBytes());
+
+        FolderSizeIndex.Usage usage = resourceFactory.getFolderSizeIndex().getUsage(resourceFactory.getRootFolder());
+        if (usage != null) {
+            ServerMetrics.writeSample(w, "webdav_used_bytes", "gauge", "Total size of the served files",
+                    usage.getBytes());
+            ServerMetrics.writeSample(w, "webdav_files", "gauge", "Number of served files", usage.getFiles());
+        }
+
+        ChangeJournal changeJournal = resourceFactory.getChangeJournal();
+        if (changeJournal.isEnabled()) {
+            ServerMetrics.writeSample(w, "webdav_sync_journal_entries", "gauge",
+                    "Paths with a change recorded for sync-collection reports", changeJournal.size());
+        }
+
+        ServerMetrics.writeSample(w, "webdav_locks", "gauge", "Held WebDAV locks",
+                resourceFactory.getPathLockManager().getLockCount());
+
+        SecurityManager securityManager = resourceFactory.getSecurityManager();
+        if (securityManager instanceof HashedSecurityManager) {
+            HashedSecurityManager hashedSecurityManager = (HashedSecurityManager) securityManager;
+            ServerMetrics.writeSample(w, "webdav_auth_cache_hits_total", "counter",
+                    "Authentications answered from the cache", hashedSecurityManager.getCacheHitCount());
+            ServerMetrics.writeSample(w, "webdav_auth_cache_misses_total", "counter",
+                    "Authentications checked against the password hash", hashedSecurityManager.getCacheMissCount());
+            ServerMetrics.writeSample(w, "webdav_auth_failures_total", "counter", "Failed authentications",
+                    hashedSecurityManager.getFailureCount());
+            ServerMetrics.writeSample(w, "webdav_auth_hash_seconds_total", "counter",
+                    "Time spent checking password hashes", hashedSecurityManager.getVerificationNanos() / 1e9);
+            ServerMetrics.writeSample(w, "webdav_auth_hash_checks_total", "counter", "Checks against password hashes",
+                    hashedSecurityManager.getVerificationCount());
+        }
+    }
+}
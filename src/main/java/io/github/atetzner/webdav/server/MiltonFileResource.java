@@ -18,7 +18,6 @@
 
 package io.github.atetzner.webdav.server;
 
-import io.milton.common.ContentTypeUtils;
 import io.milton.http.Auth;
 import io.milton.http.FileItem;
 import io.milton.http.LockInfo;
@@ -37,8 +36,6 @@ import io.milton.resource.CollectionResource;
 import io.milton.resource.FileResource;
 import io.milton.resource.LockableResource;
 import io.milton.resource.ReplaceableResource;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.mina.core.RuntimeIoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,10 +44,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Map;
 
@@ -62,9 +56,20 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
     private static final Logger LOGGER = LoggerFactory.getLogger(MiltonFileResource.class);
     private final File file;
     private final MiltonWebDAVResourceFactory resourceFactory;
+    private FileAttributes attributes;
 
     public MiltonFileResource(File file, MiltonWebDAVResourceFactory resourceFactory) {
+        this(file, null, resourceFactory);
+    }
+
+    /**
+     * @param file            the {@link File} to serve
+     * @param attributes      the already known attributes of the file or {@code null} to look them up on first use
+     * @param resourceFactory the factory that created this resource
+     */
+    public MiltonFileResource(File file, FileAttributes attributes, MiltonWebDAVResourceFactory resourceFactory) {
         this.file = file;
+        this.attributes = attributes;
         this.resourceFactory = resourceFactory;
     }
 
@@ -105,7 +110,7 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
 
     @Override
     public Date getModifiedDate() {
-        return new Date(file.lastModified());
+        return new Date(getAttributes().getLastModified());
     }
 
     @Override
@@ -119,21 +124,35 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
             ConflictException {
         LOGGER.debug("Copying {} to {}/{}", this.file, toCollection.getName(), name);
 
-        File copyFilePath = new File(resourceFactory.getRootFolder(), toCollection.getName());
-        File copyFile = new File(copyFilePath, name);
+        File copyFile = new File(resourceFactory.getFolder(toCollection), name);
+        long oldSize = resourceFactory.getFolderSizeIndex().sizeOf(copyFile);
 
         try {
-            FileUtils.copyFile(this.file, copyFile);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.COPY);
+            resourceFactory.getFileCopier().copyFile(this.file, copyFile);
         } catch (IOException e) {
             LOGGER.error("Error copying file {} to {}/{}", this.file, toCollection, name, e);
             throw new RuntimeIoException(e);
+        } finally {
+            resourceFactory.getAttributeCache().invalidate(copyFile);
+            resourceFactory.getContentCache().invalidate(copyFile);
+            updateFolderSizes(copyFile, oldSize);
+            resourceFactory.getChangeJournal().recordChanged(copyFile);
         }
     }
 
     @Override
     public void delete() throws NotAuthorizedException, ConflictException, BadRequestException {
         LOGGER.debug("Deleting {}", this.file);
-        if (!this.file.delete()) {
+        resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.DELETE);
+        long oldSize = resourceFactory.getFolderSizeIndex().sizeOf(this.file);
+        boolean deleted = this.file.delete();
+        invalidateAttributes();
+        updateFolderSizes(this.file, oldSize);
+        resourceFactory.getPathLockManager().releaseLocks(getUniqueId());
+        if (deleted) {
+            resourceFactory.getChangeJournal().recordDeleted(this.file);
+        } else {
             LOGGER.error("Could not delete file {}", this.file);
             throw new RuntimeIoException("Could no delete file " + file);
         }
@@ -142,21 +161,27 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
     @Override
     public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws
             IOException, NotAuthorizedException, BadRequestException, NotFoundException {
-        LOGGER.debug("Sending contents for {}", this.file);
+        LOGGER.debug("Sending contents for {} (range {})", this.file, range);
         if (!this.file.isDirectory()) {
-            FileUtils.copyFile(this.file, out);
+            ByteBuffer cached = resourceFactory.getContentCache().get(this.file, getAttributes());
+            if (cached != null) {
+                resourceFactory.getContentTransfer().send(this.file, cached, range, out);
+                return;
+            }
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.READ);
+            resourceFactory.getContentTransfer().send(this.file, range, out);
         }
     }
 
     @Override
     public Long getMaxAgeSeconds(Auth auth) {
-        return null;
+        return resourceFactory.getCacheControlPolicy().getMaxAgeSeconds(resourceFactory.getRootRelativePath(this.file));
     }
 
     @Override
     public String getContentType(String accepts) {
-        String mime = ContentTypeUtils.findContentTypes(this.file);
-        String contentType = ContentTypeUtils.findAcceptableContentType(mime, accepts);
+        String contentType = resourceFactory.getContentTypeResolver().getContentType(this.file, getAttributes(),
+                accepts);
 
         LOGGER.debug("Resolved content-type {} for {}", contentType, this.file);
 
@@ -166,7 +191,7 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
 
     @Override
     public Long getContentLength() {
-        return this.file.length();
+        return getAttributes().getSize();
     }
 
     @Override
@@ -198,50 +223,54 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
             BadRequestException {
         LOGGER.debug("Moving {} to {}/{}", this.file, rDest.getName(), name);
 
-        File copyFilePath = new File(resourceFactory.getRootFolder(), rDest.getName());
-        File copyFile = new File(copyFilePath, name);
+        File copyFile = new File(resourceFactory.getFolder(rDest), name);
+        long oldSize = resourceFactory.getFolderSizeIndex().sizeOf(this.file);
+        long oldTargetSize = resourceFactory.getFolderSizeIndex().sizeOf(copyFile);
 
         try {
-            FileUtils.moveFile(this.file, copyFile);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.MOVE);
+            resourceFactory.getTreeEngine().move(this.file, copyFile);
+            resourceFactory.getChangeJournal().recordDeleted(this.file);
+            resourceFactory.getChangeJournal().recordChanged(copyFile);
+            resourceFactory.getPathLockManager().releaseLocks(getUniqueId());
         } catch (IOException e) {
             LOGGER.error("Error moving file {} to {}/{}", this.file, rDest, name, e);
             throw new RuntimeIoException(e);
+        } finally {
+            invalidateAttributes();
+            resourceFactory.getAttributeCache().invalidate(copyFile);
+            resourceFactory.getContentCache().invalidate(copyFile);
+            updateFolderSizes(this.file, oldSize);
+            updateFolderSizes(copyFile, oldTargetSize);
         }
     }
 
     @Override
     public Date getCreateDate() {
-        Path filePath = Paths.get(this.file.toURI());
-        try {
-            BasicFileAttributes attr = Files.readAttributes(filePath, BasicFileAttributes.class);
-            long creationTimeMillis = attr.creationTime().toMillis();
-            return new Date(creationTimeMillis);
-        } catch (IOException e) {
-            LOGGER.error("Error getting creation time for file {}", this.file, e);
-            throw new RuntimeIoException(e);
+        FileAttributes fileAttributes = getAttributes();
+        if (!fileAttributes.exists()) {
+            LOGGER.error("Error getting creation time for file {}", this.file);
+            throw new RuntimeIoException("Could not read attributes of file " + this.file);
         }
-
+        return new Date(fileAttributes.getCreationTime());
     }
 
     @Override
     public void replaceContent(InputStream in, Long length) throws BadRequestException, ConflictException,
             NotAuthorizedException {
         LOGGER.debug("Replacing content of {}", this.file);
+        long oldSize = resourceFactory.getFolderSizeIndex().sizeOf(this.file);
 
-        OutputStream out = null;
         try {
-            out = FileUtils.openOutputStream(this.file);
-            IOUtils.copy(in, out);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.WRITE);
+            resourceFactory.getFileWriter().write(this.file, in, length);
         } catch (IOException e) {
+            LOGGER.error("Error replacing content of {}", this.file, e);
             throw new RuntimeIoException(e);
         } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    LOGGER.error("Error closing output stream to {}", this.file, e);
-                }
-            }
+            invalidateAttributes();
+            updateFolderSizes(this.file, oldSize);
+            resourceFactory.getChangeJournal().recordChanged(this.file);
         }
     }
 
@@ -250,4 +279,34 @@ public class MiltonFileResource implements FileResource, ReplaceableResource, Lo
             NotAuthorizedException, ConflictException {
         return null;
     }
+
+    /**
+     * @return the served file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the (possibly cached) attributes of the served file
+     */
+    public FileAttributes getAttributes() {
+        if (attributes == null) {
+            attributes = resourceFactory.getAttributeCache().get(this.file);
+        }
+        return attributes;
+    }
+
+    private void updateFolderSizes(File changedFile, long oldSize) {
+        FolderSizeIndex folderSizeIndex = resourceFactory.getFolderSizeIndex();
+        if (folderSizeIndex.isEnabled()) {
+            folderSizeIndex.updateFile(changedFile, oldSize);
+        }
+    }
+
+    private void invalidateAttributes() {
+        attributes = null;
+        resourceFactory.getAttributeCache().invalidate(this.file);
+        resourceFactory.getContentCache().invalidate(this.file);
+    }
 }
@@ -18,19 +18,24 @@
 
 package io.github.atetzner.webdav.server;
 
-import io.milton.common.ContentTypeUtils;
 import io.milton.http.Auth;
+import io.milton.http.LockInfo;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
 import io.milton.http.Range;
 import io.milton.http.Request;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.LockedException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
+import io.milton.http.exceptions.PreConditionFailedException;
 import io.milton.resource.CollectionResource;
 import io.milton.resource.FolderResource;
+import io.milton.resource.LockingCollectionResource;
+import io.milton.resource.QuotaResource;
 import io.milton.resource.Resource;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.mina.core.RuntimeIoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,8 +44,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -49,15 +57,26 @@ import java.util.Map;
 /**
  * A {@link FolderResource milton FolderResource} to serve the contents of a single folder.
  */
-public class MiltonFolderResource implements FolderResource {
+public class MiltonFolderResource implements FolderResource, LockingCollectionResource, QuotaResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MiltonFolderResource.class);
 
     private final File file;
     private final MiltonWebDAVResourceFactory resourceFactory;
+    private FileAttributes attributes;
 
     public MiltonFolderResource(File file, MiltonWebDAVResourceFactory resourceFactory) {
+        this(file, null, resourceFactory);
+    }
+
+    /**
+     * @param file            the {@link File} to serve
+     * @param attributes      the already known attributes of the file or {@code null} to look them up on first use
+     * @param resourceFactory the factory that created this resource
+     */
+    public MiltonFolderResource(File file, FileAttributes attributes, MiltonWebDAVResourceFactory resourceFactory) {
         this.file = file;
+        this.attributes = attributes;
         this.resourceFactory = resourceFactory;
     }
 
@@ -66,12 +85,13 @@ public class MiltonFolderResource implements FolderResource {
         LOGGER.debug("Getting child {} in {}", childName, this.file);
 
         File child = new File(file, childName);
-        if (!child.exists()) {
+        FileAttributes childAttributes = resourceFactory.getAttributeCache().get(child);
+        if (!childAttributes.exists()) {
             return null;
-        } else if (child.isDirectory()) {
-            return new MiltonFolderResource(child, resourceFactory);
+        } else if (childAttributes.isDirectory()) {
+            return new MiltonFolderResource(child, childAttributes, resourceFactory);
         } else {
-            return new MiltonFileResource(child, resourceFactory);
+            return new MiltonFileResource(child, childAttributes, resourceFactory);
         }
     }
 
@@ -79,15 +99,27 @@ public class MiltonFolderResource implements FolderResource {
     public List<? extends Resource> getChildren() throws NotAuthorizedException, BadRequestException {
         LOGGER.debug("Getting children in {}", this.file);
 
-        File[] folderContents = this.file.listFiles();
-        List<Resource> result = new ArrayList<>(folderContents.length);
+        List<Resource> result = new ArrayList<>();
+        resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.LIST);
 
-        for (File f : folderContents) {
-            if (f.isDirectory()) {
-                result.add(new MiltonFolderResource(f, resourceFactory));
-            } else {
-                result.add(new MiltonFileResource(f, resourceFactory));
+        // read the attributes of each child exactly once and hand them to the child resources, so milton's subsequent
+        // queries for size, dates etc. do not hit the file system again
+        try (DirectoryStream<Path> folderContents = Files.newDirectoryStream(this.file.toPath())) {
+            for (Path childPath : folderContents) {
+                if (AtomicFileWriter.isTemporaryFile(childPath)) {
+                    continue;
+                }
+                File child = childPath.toFile();
+                FileAttributes childAttributes = readChildAttributes(childPath);
+                if (childAttributes.isDirectory()) {
+                    result.add(new MiltonFolderResource(child, childAttributes, resourceFactory));
+                } else {
+                    result.add(new MiltonFileResource(child, childAttributes, resourceFactory));
+                }
             }
+        } catch (IOException e) {
+            LOGGER.error("Error listing folder {}", this.file, e);
+            throw new RuntimeIoException(e);
         }
 
         return result;
@@ -98,14 +130,21 @@ public class MiltonFolderResource implements FolderResource {
             ConflictException {
         LOGGER.debug("Copying folder {} to {}/{}", this.file, toCollection.getName(), name);
 
-        File destinationRootFolder = new File(resourceFactory.getRootFolder(), toCollection.getName());
-        File destinationFolder = new File(destinationRootFolder, name);
+        File destinationFolder = new File(resourceFactory.getFolder(toCollection), name);
+        rejectInsideSelf(destinationFolder);
 
         try {
-            FileUtils.copyDirectory(this.file, destinationFolder);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.COPY);
+            resourceFactory.getTreeEngine().copy(this.file, destinationFolder);
+            resourceFactory.getFolderSizeIndex().folderCopied(this.file, destinationFolder);
         } catch (IOException e) {
             LOGGER.error("Error copying folder {}", this.file, e);
+            resourceFactory.getFolderSizeIndex().markChanged(destinationFolder);
             throw new RuntimeIoException(e);
+        } finally {
+            resourceFactory.getAttributeCache().invalidateTree(destinationFolder);
+            resourceFactory.getContentCache().invalidateTree(destinationFolder);
+            resourceFactory.getChangeJournal().recordTreeChanged(destinationFolder);
         }
     }
 
@@ -114,10 +153,19 @@ public class MiltonFolderResource implements FolderResource {
         LOGGER.debug("Deleting {}", this.file);
 
         try {
-            FileUtils.deleteDirectory(this.file);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.DELETE);
+            resourceFactory.getTreeEngine().delete(this.file);
+            resourceFactory.getFolderSizeIndex().folderDeleted(this.file);
+            resourceFactory.getChangeJournal().recordDeleted(this.file);
         } catch (IOException e) {
             LOGGER.error("Error deleting folder {}", this.file, e);
+            resourceFactory.getFolderSizeIndex().markChanged(this.file);
+            resourceFactory.getChangeJournal().recordExternalChange(this.file, false);
             throw new RuntimeIoException(e);
+        } finally {
+            resourceFactory.getAttributeCache().invalidateTree(this.file);
+            resourceFactory.getContentCache().invalidateTree(this.file);
+            resourceFactory.getPathLockManager().releaseLocks(getUniqueId());
         }
     }
 
@@ -125,31 +173,19 @@ public class MiltonFolderResource implements FolderResource {
     public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws
             IOException, NotAuthorizedException, BadRequestException, NotFoundException {
         LOGGER.debug("Sending content for folder {} and contenttype {}", this.file, contentType);
-        String relativePath = getRootRelativePath();
-
-        PrintWriter w = new PrintWriter(out);
-        w.println("<html><head><title>Folder listing for " + relativePath + "</title></head>");
-        w.println("<body>");
-        w.println("<h1>Folder listing for " + relativePath + "</h1>");
-        w.println("<ul>");
-        for (File f : this.file.listFiles()) {
-            String childRelativePath = getRootRelativePath(f);
-            w.println("<li><a href=\"" + childRelativePath + "\">" + f.getName() + "</a></li>");
-        }
-        w.println("</ul></body></html>");
-        w.flush();
-        w.close();
+        resourceFactory.getListingRenderer().render(this.file, getAttributes().getLastModified(),
+                resourceFactory.getRootRelativePath(this.file), params, out);
     }
 
     @Override
     public Long getMaxAgeSeconds(Auth auth) {
-        return null;
+        return resourceFactory.getCacheControlPolicy().getMaxAgeSeconds(resourceFactory.getRootRelativePath(this.file));
     }
 
     @Override
     public String getContentType(String accepts) {
-        String mime = ContentTypeUtils.findContentTypes(this.file);
-        String contentType = ContentTypeUtils.findAcceptableContentType(mime, accepts);
+        String contentType = resourceFactory.getContentTypeResolver().getContentType(this.file, getAttributes(),
+                accepts);
 
         LOGGER.debug("Resolved content-type {} for {}", contentType, this.file);
 
@@ -165,8 +201,12 @@ public class MiltonFolderResource implements FolderResource {
     public CollectionResource createCollection(String newName) throws NotAuthorizedException, ConflictException,
             BadRequestException {
         File subfolder = new File(this.file, newName);
-        if (subfolder.mkdir()) {
+        resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.MKDIR);
+        boolean created = subfolder.mkdir();
+        resourceFactory.getAttributeCache().invalidate(subfolder);
+        if (created) {
             LOGGER.debug("Created folder {}", subfolder);
+            resourceFactory.getChangeJournal().recordChanged(subfolder);
             return new MiltonFolderResource(subfolder, resourceFactory);
         } else {
             LOGGER.warn("Could not create subfolder {}", subfolder);
@@ -179,14 +219,28 @@ public class MiltonFolderResource implements FolderResource {
             BadRequestException {
         LOGGER.debug("Moving {} to {}/{}", this.file, rDest.getName(), name);
 
-        File newRootDir = new File(resourceFactory.getRootFolder(), rDest.getName());
-        File newDir = new File(newRootDir, name);
+        File newDir = new File(resourceFactory.getFolder(rDest), name);
+        rejectInsideSelf(newDir);
 
         try {
-            FileUtils.moveDirectory(this.file, newDir);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.MOVE);
+            resourceFactory.getTreeEngine().move(this.file, newDir);
+            resourceFactory.getFolderSizeIndex().folderMoved(this.file, newDir);
+            resourceFactory.getChangeJournal().recordDeleted(this.file);
+            resourceFactory.getChangeJournal().recordTreeChanged(newDir);
+            resourceFactory.getPathLockManager().releaseLocks(getUniqueId());
         } catch (IOException e) {
             LOGGER.error("Error moving {} to {}", this.file, newDir);
+            resourceFactory.getFolderSizeIndex().markChanged(this.file);
+            resourceFactory.getFolderSizeIndex().markChanged(newDir);
+            resourceFactory.getChangeJournal().recordExternalChange(this.file, false);
+            resourceFactory.getChangeJournal().recordExternalChange(newDir, false);
             throw new RuntimeIoException(e);
+        } finally {
+            resourceFactory.getAttributeCache().invalidateTree(this.file);
+            resourceFactory.getContentCache().invalidateTree(this.file);
+            resourceFactory.getAttributeCache().invalidateTree(newDir);
+            resourceFactory.getContentCache().invalidateTree(newDir);
         }
     }
 
@@ -199,23 +253,20 @@ public class MiltonFolderResource implements FolderResource {
     public Resource createNew(String newName, InputStream inputStream, Long length, String contentType) throws
             IOException, ConflictException, NotAuthorizedException, BadRequestException {
         File newFile = new File(this.file, newName);
-        OutputStream out = null;
+        long oldSize = resourceFactory.getFolderSizeIndex().sizeOf(newFile);
         try {
-            out = FileUtils.openOutputStream(newFile);
-            IOUtils.copy(inputStream, out);
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.WRITE);
+            resourceFactory.getFileWriter().write(newFile, inputStream, length);
 
             return new MiltonFileResource(newFile, resourceFactory);
         } catch (Exception e) {
             LOGGER.error("Error creating file {}", newFile, e);
             throw new RuntimeIoException(e);
         } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    LOGGER.warn("Error closing new file output stream for file {}", newFile, e);
-                }
-            }
+            resourceFactory.getAttributeCache().invalidate(newFile);
+            resourceFactory.getContentCache().invalidate(newFile);
+            updateFolderSizes(newFile, oldSize);
+            resourceFactory.getChangeJournal().recordChanged(newFile);
         }
     }
 
@@ -256,7 +307,7 @@ public class MiltonFolderResource implements FolderResource {
 
     @Override
     public Date getModifiedDate() {
-        return new Date(file.lastModified());
+        return new Date(getAttributes().getLastModified());
     }
 
     @Override
@@ -265,13 +316,115 @@ public class MiltonFolderResource implements FolderResource {
         return null;
     }
 
-    private String getRootRelativePath() {
-        return getRootRelativePath(this.file);
+    @Override
+    public LockResult lock(LockTimeout timeout, LockInfo lockInfo) throws NotAuthorizedException,
+            PreConditionFailedException, LockedException {
+        LOGGER.debug("Locking folder {} with depth {}", this.file, lockInfo.depth);
+        return resourceFactory.getLockManager().lock(timeout, lockInfo, this);
+    }
+
+    @Override
+    public LockResult refreshLock(String token, LockTimeout timeout) throws NotAuthorizedException,
+            PreConditionFailedException {
+        LOGGER.debug("Refreshing lock for folder {}", this.file);
+        return resourceFactory.getLockManager().refresh(token, timeout, this);
+    }
+
+    @Override
+    public void unlock(String tokenId) throws NotAuthorizedException, PreConditionFailedException {
+        LOGGER.debug("Unlocking folder {}", this.file);
+        resourceFactory.getLockManager().unlock(tokenId, this);
+    }
+
+    @Override
+    public LockToken getCurrentLock() {
+        return resourceFactory.getLockManager().getCurrentToken(this);
+    }
+
+    @Override
+    public LockToken createAndLock(String name, LockTimeout timeout, LockInfo lockInfo) throws
+            NotAuthorizedException {
+        File newFile = new File(this.file, name);
+        LOGGER.debug("Creating and locking {}", newFile);
+
+        try {
+            resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.WRITE);
+            // clients like MS Office lock a name before uploading to it, so an empty placeholder file is created
+            Files.createFile(newFile.toPath());
+            updateFolderSizes(newFile, -1);
+            resourceFactory.getChangeJournal().recordChanged(newFile);
+        } catch (FileAlreadyExistsException e) {
+            LOGGER.debug("File {} to lock already exists", newFile);
+        } catch (IOException e) {
+            LOGGER.error("Error creating file {}", newFile, e);
+            throw new RuntimeIoException(e);
+        } finally {
+            resourceFactory.getAttributeCache().invalidate(newFile);
+            resourceFactory.getContentCache().invalidate(newFile);
+        }
+
+        LockResult result = resourceFactory.getLockManager().lock(timeout, lockInfo,
+                new MiltonFileResource(newFile, resourceFactory));
+        return result.isSuccessful() ? result.getLockToken() : null;
+    }
+
+    @Override
+    public Long getQuotaUsed() {
+        FolderSizeIndex.Usage usage = resourceFactory.getFolderSizeIndex().getUsage(this.file);
+        return usage == null ? null : usage.getBytes();
     }
 
-    private String getRootRelativePath(File file) {
-        URI toInspectURI = file.toURI();
-        URI relativePath = resourceFactory.getRootFolder().toURI().relativize(toInspectURI);
-        return "/" + relativePath.getPath();
+    @Override
+    public Long getQuotaAvailable() {
+        FolderSizeIndex folderSizeIndex = resourceFactory.getFolderSizeIndex();
+        return folderSizeIndex.isEnabled() ? folderSizeIndex.getAvailableBytes() : null;
+    }
+
+    /**
+     * @return the served folder
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the (possibly cached) attributes of the served folder
+     */
+    public FileAttributes getAttributes() {
+        if (attributes == null) {
+            attributes = resourceFactory.getAttributeCache().get(this.file);
+        }
+        return attributes;
+    }
+
+    /**
+     * Rejects copying or moving this folder into itself, which would never end.
+     */
+    private void rejectInsideSelf(File destination) throws ConflictException {
+        Path source = this.file.toPath().toAbsolutePath().normalize();
+        if (destination.toPath().toAbsolutePath().normalize().startsWith(source)) {
+            throw new ConflictException(this, "Cannot copy or move " + this.file + " into itself");
+        }
+    }
+
+    private void updateFolderSizes(File changedFile, long oldSize) {
+        FolderSizeIndex folderSizeIndex = resourceFactory.getFolderSizeIndex();
+        if (folderSizeIndex.isEnabled()) {
+            folderSizeIndex.updateFile(changedFile, oldSize);
+        }
+    }
+
+    private FileAttributes readChildAttributes(Path childPath) {
+        resourceFactory.getMetrics().countFileSystemCall(ServerMetrics.FileSystemCall.STAT);
+        try {
+            FileAttributes childAttributes = FileAttributes.of(Files.readAttributes(childPath,
+                    BasicFileAttributes.class));
+            resourceFactory.getAttributeCache().put(childPath.toFile(), childAttributes);
+            return childAttributes;
+        } catch (IOException e) {
+            // e.g. a dangling symbolic link, which is served as (non-readable) file like before
+            LOGGER.debug("Could not read attributes of {}", childPath, e);
+            return FileAttributes.missing();
+        }
     }
 }
@@ -22,25 +22,174 @@ import io.milton.http.HttpManager;
 import io.milton.servlet.MiltonServlet;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 /**
  * A jetty handler to serve all request using a {@link HttpManager milton HttpManager}.
  */
 public class MiltonHandler extends AbstractHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiltonHandler.class);
+
     private final HttpManager httpManager;
+    private StreamingPropFindHandler streamingPropFindHandler = null;
+    private SyncCollectionReportHandler syncCollectionReportHandler = null;
+    private PrecompressedFileHandler precompressedFileHandler = null;
+    private Executor requestExecutor = null;
+    private ServerMetrics metrics = null;
 
     public MiltonHandler(HttpManager httpManager) {
         this.httpManager = httpManager;
     }
 
+    /**
+     * @param streamingPropFindHandler handler to stream {@code PROPFIND} responses for folders or {@code null} to let
+     *                                 milton handle all {@code PROPFIND} requests
+     */
+    public void setStreamingPropFindHandler(StreamingPropFindHandler streamingPropFindHandler) {
+        this.streamingPropFindHandler = streamingPropFindHandler;
+    }
+
+    /**
+     * @param syncCollectionReportHandler handler to answer {@code sync-collection} reports or {@code null} to let
+     *                                    milton handle all {@code REPORT} requests
+     */
+    public void setSyncCollectionReportHandler(SyncCollectionReportHandler syncCollectionReportHandler) {
+        this.syncCollectionReportHandler = syncCollectionReportHandler;
+    }
+
+    /**
+     * @param precompressedFileHandler handler to serve precompressed siblings of files or {@code null} to let milton
+     *                                 handle all {@code GET} requests
+     */
+    public void setPrecompressedFileHandler(PrecompressedFileHandler precompressedFileHandler) {
+        this.precompressedFileHandler = precompressedFileHandler;
+    }
+
+    /**
+     * @param requestExecutor executor to process the requests asynchronously on, e.g. one running each request on a
+     *                        virtual thread, or {@code null} to process requests on jetty's thread
+     */
+    public void setRequestExecutor(Executor requestExecutor) {
+        this.requestExecutor = requestExecutor;
+    }
+
+    /**
+     * @param metrics metrics to record the latency, status and transferred bytes of every request in or {@code null}
+     *                to record nothing
+     */
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void handle(String target, Request baseRequest, HttpServletRequest request,
                        HttpServletResponse response) throws IOException, ServletException {
+        if (requestExecutor == null) {
+            process(baseRequest, request, response);
+            return;
+        }
+
+        // release jetty's thread while the request is processed - and blocks on I/O - on the executor's thread
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        baseRequest.setHandled(true);
+        requestExecutor.execute(() -> {
+            boolean sendingAsync = false;
+            try {
+                sendingAsync = process(baseRequest, request, response);
+            } catch (IOException | ServletException | RuntimeException e) {
+                LOGGER.error("Error processing {} request for {}", request.getMethod(), request.getRequestURI(), e);
+                if (!response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                if (!sendingAsync) {
+                    asyncContext.complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return {@code true} if the content is sent by an {@link AsyncFileSender}, which completes the request
+     */
+    private boolean process(Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws
+            IOException, ServletException {
+        String method = request.getMethod();
+        long start = System.nanoTime();
+        if (metrics != null) {
+            metrics.requestStarted(method);
+        }
+        Runnable finished = () -> {
+            if (metrics != null) {
+                metrics.requestFinished(method, response.getStatus(), System.nanoTime() - start,
+                        baseRequest.getHttpInput().getContentConsumed(),
+                        baseRequest.getHttpChannel().getBytesWritten());
+            }
+        };
+
+        AsyncFileSender sender;
+        try {
+            sender = processRequest(baseRequest, request, response);
+        } catch (IOException | ServletException | RuntimeException e) {
+            finished.run();
+            throw e;
+        }
+        if (sender == null) {
+            finished.run();
+            return false;
+        }
+        baseRequest.setHandled(true);
+        sender.start(request, finished);
+        return true;
+    }
+
+    private AsyncFileSender processRequest(Request baseRequest, HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException, ServletException {
+        // large file contents are deferred to an AsyncFileSender instead of being written on this thread
+        AsyncFileSender.enable();
+        try {
+            dispatch(baseRequest, request, response);
+        } catch (IOException | ServletException | RuntimeException e) {
+            AsyncFileSender.discard();
+            throw e;
+        }
+        return AsyncFileSender.disable();
+    }
+
+    private void dispatch(Request baseRequest, HttpServletRequest servletRequest, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (precompressedFileHandler != null && precompressedFileHandler.handle(servletRequest, response)) {
+            baseRequest.setHandled(true);
+            return;
+        }
+
+        HttpServletRequest request = servletRequest;
+        if (streamingPropFindHandler != null && streamingPropFindHandler.isCandidate(request)) {
+            byte[] body = streamingPropFindHandler.readBody(request);
+            if (streamingPropFindHandler.handle(request, body, response)) {
+                baseRequest.setHandled(true);
+                return;
+            }
+            request = streamingPropFindHandler.replayBody(request, body);
+        }
+        if (syncCollectionReportHandler != null && syncCollectionReportHandler.isCandidate(request)) {
+            byte[] body = syncCollectionReportHandler.readBody(request);
+            if (syncCollectionReportHandler.handle(request, body, response)) {
+                baseRequest.setHandled(true);
+                return;
+            }
+            request = syncCollectionReportHandler.replayBody(request, body);
+        }
+
         io.milton.http.Request miltonRequest = new io.milton.servlet.ServletRequest(request, null);
         io.milton.servlet.ServletResponse miltonResponse = new io.milton.servlet.ServletResponse(response);
 
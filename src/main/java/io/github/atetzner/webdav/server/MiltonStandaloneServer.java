@@ -21,7 +21,11 @@ package io.github.atetzner.webdav.server;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Main class to start a {@link MiltonWebDAVFileServer} from the command line; for command line options of the server
@@ -45,6 +49,11 @@ public class MiltonStandaloneServer {
             cmdLineArgs.setHelp(true);
         }
 
+        if (!cmdLineArgs.isHelp() && cmdLineArgs.isHashPassword()) {
+            printPasswordHash();
+            return;
+        }
+
         if (!cmdLineArgs.isHelp() && cmdLineArgs.getRootFolder().size() != 1) {
             stderr("Give exactly one folder to serve");
             cmdLineArgs.setHelp(true);
@@ -58,11 +67,49 @@ public class MiltonStandaloneServer {
         File rootFolder = new File(cmdLineArgs.getRootFolder().get(0));
         MiltonWebDAVFileServer server = new MiltonWebDAVFileServer(rootFolder);
         server.setPort(cmdLineArgs.getPort());
+        server.setStreamingPropFind(cmdLineArgs.isStreamingPropFind());
+        server.setVirtualThreads(cmdLineArgs.isVirtualThreads());
+        server.setAsyncSendThreshold(cmdLineArgs.getAsyncSendThreshold());
+        server.setContentCacheSize(cmdLineArgs.getContentCacheSize());
+        server.setFolderSizeIndex(cmdLineArgs.isFolderSizeIndex());
+        server.setQuotaBytes(cmdLineArgs.getQuotaBytes());
+        server.setUploadDurability(cmdLineArgs.getUploadDurability());
+        server.setReflinkMinSize(cmdLineArgs.getReflinkMinSize());
+        if (cmdLineArgs.getTreeParallelism() != null) {
+            server.setTreeParallelism(cmdLineArgs.getTreeParallelism());
+        }
+        if (cmdLineArgs.getLockJournal() != null) {
+            server.setLockJournal(new File(cmdLineArgs.getLockJournal()));
+        }
+        server.setSyncCollection(cmdLineArgs.isSyncCollection());
+        if (cmdLineArgs.getSyncJournal() != null) {
+            server.setSyncJournal(new File(cmdLineArgs.getSyncJournal()));
+        }
+        server.setMetricsPath(cmdLineArgs.getMetricsPath());
+        server.setConnectorConfiguration(cmdLineArgs.getConnectorConfiguration());
+        server.setCompressionConfiguration(cmdLineArgs.getCompressionConfiguration());
+        server.setQosConfiguration(cmdLineArgs.getQosConfiguration());
         server.getUserCredentials().putAll(cmdLineArgs.getParsedUserCredentials());
+        if (cmdLineArgs.getCredentialsFile() != null) {
+            server.setCredentialsFile(new File(cmdLineArgs.getCredentialsFile()));
+        }
+        cmdLineArgs.getParsedMaxAges().forEach(server.getCacheControlPolicy()::addRule);
+        cmdLineArgs.getParsedMimeTypes().forEach(server.getContentTypeResolver()::addMapping);
         server.start();
         server.join();
     }
 
+    private static void printPasswordHash() throws IOException {
+        char[] password;
+        if (System.console() != null) {
+            password = System.console().readPassword("Password: ");
+        } else {
+            String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            password = line == null ? new char[0] : line.toCharArray();
+        }
+        System.out.println(PasswordHash.create(password)); //NOSONAR
+    }
+
     private static void stderr(String msg) {
         System.err.println(msg); //NOSONAR
     }
@@ -21,13 +21,30 @@ package io.github.atetzner.webdav.server;
 
 import io.milton.config.HttpManagerBuilder;
 import io.milton.http.HttpManager;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.jmx.MBeanContainer;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import static org.apache.commons.lang3.Validate.*;
 
@@ -36,11 +53,35 @@ import static org.apache.commons.lang3.Validate.*;
  */
 public class MiltonWebDAVFileServer {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiltonWebDAVFileServer.class);
+
     private final File rootFolder;
     private Server jettyServer = null;
     private ServerConnector connector = null;
+    private MiltonWebDAVResourceFactory resourceFactory = null;
     private int port = 8081;
     private Map<String, String> userCredentials = new HashMap<>();
+    private File credentialsFile = null;
+    private boolean streamingPropFind = false;
+    private boolean virtualThreads = false;
+    private long asyncSendThreshold = -1;
+    private long contentCacheSize = 0;
+    private boolean folderSizeIndex = false;
+    private long quotaBytes = -1;
+    private UploadDurability uploadDurability = UploadDurability.NONE;
+    private long reflinkMinSize = -1;
+    private int treeParallelism = ParallelTreeEngine.defaultParallelism();
+    private File lockJournal = null;
+    private boolean syncCollection = false;
+    private File syncJournal = null;
+    private ExecutorService requestExecutor = null;
+    private String metricsPath = null;
+    private ObjectName metricsObjectName = null;
+    private ConnectorConfiguration connectorConfiguration = new ConnectorConfiguration();
+    private final CacheControlPolicy cacheControlPolicy = new CacheControlPolicy();
+    private final ContentTypeResolver contentTypeResolver = new ContentTypeResolver();
+    private CompressionConfiguration compressionConfiguration = new CompressionConfiguration();
+    private QosConfiguration qosConfiguration = new QosConfiguration();
 
     /**
      * @param rootFolder The folder that will be served by the created WebDAV server
@@ -62,9 +103,187 @@ public class MiltonWebDAVFileServer {
         this.port = port;
     }
 
+    public boolean isStreamingPropFind() {
+        return streamingPropFind;
+    }
+
+    /**
+     * @param streamingPropFind if {@code true}, {@code PROPFIND} responses for the children of a folder are written
+     *                          while the folder is read instead of being built in memory first. Recommended for folders
+     *                          with a huge number of entries.
+     */
+    public void setStreamingPropFind(boolean streamingPropFind) {
+        this.streamingPropFind = streamingPropFind;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads if {@code true}, requests are processed on virtual threads instead of the threads of
+     *                       jetty's thread pool, so slow clients do not use up the pool. Falls back to jetty's thread
+     *                       pool if the JVM does not {@link VirtualThreads#isSupported() support} virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public long getAsyncSendThreshold() {
+        return asyncSendThreshold;
+    }
+
+    /**
+     * @param asyncSendThreshold minimum size in bytes of file contents to send with non-blocking I/O, so the request
+     *                           thread is released while a slow client downloads; negative to send all contents on the
+     *                           request thread. See {@link AsyncFileSender}
+     */
+    public void setAsyncSendThreshold(long asyncSendThreshold) {
+        this.asyncSendThreshold = asyncSendThreshold;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    /**
+     * @param contentCacheSize maximum total size in bytes of the content of frequently requested files kept in memory,
+     *                         {@code 0} to disable the cache. See {@link FileContentCache}
+     */
+    public void setContentCacheSize(long contentCacheSize) {
+        isTrue(contentCacheSize >= 0, "'contentCacheSize' may not be negative");
+        this.contentCacheSize = contentCacheSize;
+    }
+
+    public boolean isFolderSizeIndex() {
+        return folderSizeIndex;
+    }
+
+    /**
+     * @param folderSizeIndex if {@code true}, the recursive sizes of all folders are indexed in the background to
+     *                        answer the {@code quota-used-bytes} and {@code quota-available-bytes} properties. See
+     *                        {@link FolderSizeIndex}
+     */
+    public void setFolderSizeIndex(boolean folderSizeIndex) {
+        this.folderSizeIndex = folderSizeIndex;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    /**
+     * @param quotaBytes maximum total size in bytes of all served files, uploads exceeding it are rejected with
+     *                   {@code 507 Insufficient Storage}; negative for no quota. Enables the {@link
+     *                   #setFolderSizeIndex(boolean) folder size index}
+     */
+    public void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    public UploadDurability getUploadDurability() {
+        return uploadDurability;
+    }
+
+    /**
+     * @param uploadDurability how durable uploaded files are when the server answers the upload request
+     */
+    public void setUploadDurability(UploadDurability uploadDurability) {
+        notNull(uploadDurability, "'uploadDurability' may not be null");
+        this.uploadDurability = uploadDurability;
+    }
+
+    public long getReflinkMinSize() {
+        return reflinkMinSize;
+    }
+
+    /**
+     * @param reflinkMinSize minimum size in bytes of files to copy with a copy-on-write clone, if the file system
+     *                       supports it; negative to always copy the content. See {@link FileCopier}
+     */
+    public void setReflinkMinSize(long reflinkMinSize) {
+        this.reflinkMinSize = reflinkMinSize;
+    }
+
+    public int getTreeParallelism() {
+        return treeParallelism;
+    }
+
+    /**
+     * @param treeParallelism maximum number of threads used for recursive copies and deletes of folders, independent
+     *                        of the request threads. See {@link ParallelTreeEngine}
+     */
+    public void setTreeParallelism(int treeParallelism) {
+        isTrue(treeParallelism > 0, "'treeParallelism' must be positive");
+        this.treeParallelism = treeParallelism;
+    }
+
+    public File getLockJournal() {
+        return lockJournal;
+    }
+
+    /**
+     * @param lockJournal file to persist WebDAV locks to, so they survive a restart; {@code null} to keep locks in
+     *                    memory only. See {@link PathLockManager}
+     */
+    public void setLockJournal(File lockJournal) {
+        this.lockJournal = lockJournal;
+    }
+
+    public boolean isSyncCollection() {
+        return syncCollection;
+    }
+
+    /**
+     * @param syncCollection if {@code true}, all changes are recorded to answer {@code sync-collection} reports, so
+     *                       clients can fetch only the changes since their last sync. See {@link ChangeJournal}
+     */
+    public void setSyncCollection(boolean syncCollection) {
+        this.syncCollection = syncCollection;
+    }
+
+    public File getSyncJournal() {
+        return syncJournal;
+    }
+
+    /**
+     * @param syncJournal file to persist the changes for {@code sync-collection} reports to, so sync tokens survive
+     *                    restarts as long as the changes made meanwhile can be detected; {@code null} to keep the
+     *                    changes in memory only. Enables {@link #setSyncCollection(boolean) sync-collection} reports
+     */
+    public void setSyncJournal(File syncJournal) {
+        this.syncJournal = syncJournal;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    /**
+     * @param metricsPath path to serve the {@link ServerMetrics metrics} at in the Prometheus text format, e.g. {@code
+     *                    /metrics}; {@code null} to not serve them. See {@link MetricsHandler}
+     */
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * The tuning of the server's thread pool and connector. Changes take effect on the next {@link #start() start}.
+     *
+     * @return the connector configuration
+     */
+    public ConnectorConfiguration getConnectorConfiguration() {
+        return connectorConfiguration;
+    }
+
+    public void setConnectorConfiguration(ConnectorConfiguration connectorConfiguration) {
+        notNull(connectorConfiguration, "'connectorConfiguration' may not be null");
+        this.connectorConfiguration = connectorConfiguration;
+    }
+
     /**
-     * A map with all authenticated users. If the map contains at least one user at the {@link #start() startup} of the
-     * server, authentication is enabled, otherwise disabled.
+     * A map with all authenticated users. If the map or the {@link #setCredentialsFile(File) credentials file} contains
+     * at least one user at the {@link #start() startup} of the server, authentication is enabled, otherwise disabled.
      *
      * @return a map to put the user credentials in
      */
@@ -72,9 +291,78 @@ public class MiltonWebDAVFileServer {
         return userCredentials;
     }
 
+    public File getCredentialsFile() {
+        return credentialsFile;
+    }
+
+    /**
+     * @param credentialsFile file with users and the hashes of their passwords, in addition to the {@link
+     *                        #getUserCredentials() user credentials}; {@code null} for none. See {@link
+     *                        HashedSecurityManager#readCredentialsFile(File)}
+     */
+    public void setCredentialsFile(File credentialsFile) {
+        this.credentialsFile = credentialsFile;
+    }
+
+    /**
+     * @return the resource factory of the running server or {@code null} if the server is not started
+     */
+    public MiltonWebDAVResourceFactory getResourceFactory() {
+        return resourceFactory;
+    }
+
+    /**
+     * The configuration of compressed responses. Changes take effect on the next {@link #start() start}.
+     *
+     * @return the compression configuration
+     */
+    public CompressionConfiguration getCompressionConfiguration() {
+        return compressionConfiguration;
+    }
+
+    public void setCompressionConfiguration(CompressionConfiguration compressionConfiguration) {
+        notNull(compressionConfiguration, "'compressionConfiguration' may not be null");
+        this.compressionConfiguration = compressionConfiguration;
+    }
+
+    /**
+     * The configuration of the admission control and bandwidth limits. Changes take effect on the next
+     * {@link #start() start}.
+     *
+     * @return the QoS configuration
+     */
+    public QosConfiguration getQosConfiguration() {
+        return qosConfiguration;
+    }
+
+    public void setQosConfiguration(QosConfiguration qosConfiguration) {
+        notNull(qosConfiguration, "'qosConfiguration' may not be null");
+        this.qosConfiguration = qosConfiguration;
+    }
+
+    /**
+     * The policy deciding the {@code max-age} of the served resources. Changes take effect immediately.
+     *
+     * @return the cache control policy
+     */
+    public CacheControlPolicy getCacheControlPolicy() {
+        return cacheControlPolicy;
+    }
+
+    /**
+     * The resolver of the content types of the served files, e.g. to {@link ContentTypeResolver#addMapping(String,
+     * String) add} content types for extensions. Changes take effect immediately.
+     *
+     * @return the content type resolver
+     */
+    public ContentTypeResolver getContentTypeResolver() {
+        return contentTypeResolver;
+    }
+
     /**
      * Creates and starts the server with the current state (credentials, port). After startup, the method will return
-     * and not block.
+     * and not block. If starting fails, everything created so far is released again, so the server can be started
+     * again.
      *
      * @throws IllegalStateException if the server has already been started
      * @throws Exception             if creation of the server fails
@@ -84,24 +372,175 @@ public class MiltonWebDAVFileServer {
             throw new IllegalStateException("Server already started");
         }
 
-        jettyServer = new Server(0);
+        try {
+            startServer();
+        } catch (Exception e) {
+            // release the threads and files already taken, so the server can be started again
+            try {
+                release();
+            } catch (Exception suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
 
-        connector = new ServerConnector(jettyServer); // NOSONAR
+    private void startServer() throws Exception {
+        ConnectorConfiguration config = connectorConfiguration;
+        isTrue(config.getMinThreads() > 0 && config.getMaxThreads() >= config.getMinThreads(),
+                "Thread pool needs at least one thread and 'maxThreads' may not be less than 'minThreads'");
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads());
+        threadPool.setName("webdav");
+        jettyServer = new Server(threadPool);
+
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setOutputBufferSize(config.getOutputBufferSize());
+
+        // one pool for jetty's network buffers and the file transfers, exposed via JMX together with the connector
+        ByteBufferPool bufferPool = createBufferPool(config);
+        connector = new ServerConnector(jettyServer, null, null, bufferPool, // NOSONAR
+                config.getAcceptors(), config.getSelectors(), createConnectionFactories(config, httpConfiguration));
         connector.setPort(getPort());
+        connector.setIdleTimeout(config.getIdleTimeout());
+        connector.setAcceptQueueSize(config.getAcceptQueueSize());
         jettyServer.setConnectors(new Connector[]{connector});
 
+        if (config.isJmxEnabled()) {
+            jettyServer.addBean(new MBeanContainer(ManagementFactory.getPlatformMBeanServer()));
+        }
+
         HttpManagerBuilder builder = new HttpManagerBuilder();
-        builder.setResourceFactory(new MiltonWebDAVResourceFactory(this.rootFolder, userCredentials));
-        builder.setEnableBasicAuth(userCredentials != null && !userCredentials.isEmpty());
+        HashedSecurityManager securityManager = createSecurityManager();
+        resourceFactory = new MiltonWebDAVResourceFactory(this.rootFolder, securityManager);
+        resourceFactory.setCacheControlPolicy(cacheControlPolicy);
+        resourceFactory.setContentTypeResolver(contentTypeResolver);
+        FileContentTransfer contentTransfer = new FileContentTransfer(bufferPool, config.getIoBufferSize());
+        contentTransfer.setAsyncThreshold(asyncSendThreshold);
+        resourceFactory.setContentTransfer(contentTransfer);
+        resourceFactory.setContentCache(new FileContentCache(contentCacheSize, FileContentCache.DEFAULT_MAX_FILE_SIZE));
+        if (folderSizeIndex || quotaBytes >= 0) {
+            FolderSizeIndex index = new FolderSizeIndex(this.rootFolder, quotaBytes);
+            resourceFactory.setFolderSizeIndex(index);
+            index.start();
+        }
+        resourceFactory.setFileWriter(new AtomicFileWriter(uploadDurability, bufferPool, config.getIoBufferSize()));
+        FileCopier fileCopier = new FileCopier(reflinkMinSize);
+        resourceFactory.setFileCopier(fileCopier);
+        resourceFactory.setTreeEngine(new ParallelTreeEngine(treeParallelism, fileCopier));
+        if (lockJournal != null) {
+            resourceFactory.setLockManager(new PathLockManager(lockJournal));
+        }
+        if (syncCollection || syncJournal != null) {
+            ChangeJournal changeJournal = new ChangeJournal(this.rootFolder, syncJournal,
+                    ChangeJournal.DEFAULT_MAX_ENTRIES);
+            // set before opening, so changes reported by the watcher while the journal is opened are recorded
+            resourceFactory.setChangeJournal(changeJournal);
+            changeJournal.open(resourceFactory.getAttributeCache()::watch);
+        }
+        builder.setResourceFactory(resourceFactory);
+        builder.setEtagGenerator(new FileAttributesETagGenerator());
+        builder.setEnableBasicAuth(securityManager != null);
         HttpManager mgr = builder.buildHttpManager();
 
-        jettyServer.setHandler(new MiltonHandler(mgr));
+        MiltonHandler miltonHandler = new MiltonHandler(mgr);
+        miltonHandler.setMetrics(resourceFactory.getMetrics());
+        if (streamingPropFind) {
+            miltonHandler.setStreamingPropFindHandler(new StreamingPropFindHandler(resourceFactory));
+        }
+        if (resourceFactory.getChangeJournal().isEnabled()) {
+            miltonHandler.setSyncCollectionReportHandler(new SyncCollectionReportHandler(resourceFactory));
+        }
+        if (compressionConfiguration.isPrecompressedEnabled()) {
+            miltonHandler.setPrecompressedFileHandler(new PrecompressedFileHandler(resourceFactory));
+        }
+        if (virtualThreads) {
+            requestExecutor = VirtualThreads.newExecutorOrNull();
+            if (requestExecutor == null) {
+                LOGGER.warn("Virtual threads are not supported by this JVM, using platform threads");
+            }
+            miltonHandler.setRequestExecutor(requestExecutor);
+        }
+
+        Handler handler = miltonHandler;
+        if (compressionConfiguration.isGzipEnabled()) {
+            handler = createGzipHandler(handler);
+        }
+        if (qosConfiguration.isEnabled()) {
+            AdmissionControlHandler admissionControlHandler = new AdmissionControlHandler(qosConfiguration,
+                    resourceFactory.getSecurityManager(), resourceFactory.getMetrics());
+            admissionControlHandler.setHandler(handler);
+            handler = admissionControlHandler;
+        }
+        if (metricsPath != null) {
+            handler = new HandlerList(new MetricsHandler(metricsPath, resourceFactory), handler);
+        }
+        jettyServer.setHandler(handler);
 
         jettyServer.start();
 
         while (!jettyServer.isStarted()) {
             Thread.sleep(50);
         }
+
+        if (config.isJmxEnabled()) {
+            // registered only once started, so a failed start leaves nothing behind, and with the actually bound port
+            metricsObjectName = new ObjectName(ServerMetrics.OBJECT_NAME + ",port=" + connector.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(resourceFactory.getMetrics(), metricsObjectName);
+        }
+    }
+
+    private HashedSecurityManager createSecurityManager() throws IOException {
+        Map<String, PasswordHash> hashes = new HashMap<>();
+        if (userCredentials != null) {
+            hashes.putAll(HashedSecurityManager.hash(userCredentials));
+        }
+        if (credentialsFile != null) {
+            hashes.putAll(HashedSecurityManager.readCredentialsFile(credentialsFile));
+        }
+        if (hashes.isEmpty()) {
+            return null;
+        }
+        return new HashedSecurityManager(hashes);
+    }
+
+    private static ByteBufferPool createBufferPool(ConnectorConfiguration config) {
+        isTrue(config.getIoBufferSize() > 0, "'ioBufferSize' must be positive");
+
+        // the pool's largest bucket must hold the I/O buffers and be a multiple of the bucket size
+        int factor = 1024;
+        int maxCapacity = Math.max(64 * 1024, (config.getIoBufferSize() + factor - 1) / factor * factor);
+        return new ArrayByteBufferPool(0, factor, maxCapacity, -1, config.getBufferPoolMaxMemory(),
+                config.getBufferPoolMaxMemory());
+    }
+
+    private static ConnectionFactory[] createConnectionFactories(ConnectorConfiguration config,
+                                                                 HttpConfiguration httpConfiguration) {
+        HttpConnectionFactory http11 = new HttpConnectionFactory(httpConfiguration);
+        if (!config.isHttp2Enabled()) {
+            return new ConnectionFactory[]{http11};
+        }
+
+        // with the h2c factory next to HTTP/1.1, clients may upgrade to HTTP/2 or start with the HTTP/2 preface
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+        h2c.setMaxConcurrentStreams(config.getHttp2MaxConcurrentStreams());
+        h2c.setInitialStreamRecvWindow(config.getHttp2StreamWindow());
+        h2c.setInitialSessionRecvWindow(config.getHttp2SessionWindow());
+        return new ConnectionFactory[]{http11, h2c};
+    }
+
+    private GzipHandler createGzipHandler(Handler handler) {
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setMinGzipSize(compressionConfiguration.getGzipMinSize());
+        gzipHandler.setIncludedMethods("GET", "PROPFIND", "REPORT");
+        if (!compressionConfiguration.getIncludedMimeTypes().isEmpty()) {
+            gzipHandler.setIncludedMimeTypes(compressionConfiguration.getIncludedMimeTypes().toArray(new String[0]));
+        }
+        gzipHandler.addExcludedMimeTypes(compressionConfiguration.getExcludedMimeTypes().toArray(new String[0]));
+        // streamed responses (e.g. PROPFIND listings) are flushed regularly and must reach the client when flushed
+        gzipHandler.setSyncFlush(true);
+        gzipHandler.setHandler(handler);
+        return gzipHandler;
     }
 
     /**
@@ -123,12 +562,41 @@ public class MiltonWebDAVFileServer {
      */
     public void stop() throws Exception {
         assertServerRunning();
-        jettyServer.stop();
-        jettyServer.join();
-        connector.close();
+        release();
+    }
+
+    /**
+     * Stops and releases everything the server has created so far, also after a partial {@link #start() start}.
+     */
+    private void release() throws Exception {
+        try {
+            if (jettyServer != null) {
+                jettyServer.stop();
+                jettyServer.join();
+            }
+            if (connector != null) {
+                connector.close();
+            }
+            if (resourceFactory != null) {
+                resourceFactory.close();
+            }
+            if (requestExecutor != null) {
+                requestExecutor.shutdown();
+            }
+            if (metricsObjectName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            }
+        } finally {
+            clear();
+        }
+    }
 
+    private void clear() {
         jettyServer = null;
         connector = null;
+        resourceFactory = null;
+        requestExecutor = null;
+        metricsObjectName = null;
     }
 
     /**
@@ -18,18 +18,20 @@
 
 package io.github.atetzner.webdav.server;
 
-import io.milton.cache.CacheManager;
-import io.milton.cache.LocalCacheManager;
 import io.milton.http.LockManager;
 import io.milton.http.ResourceFactory;
 import io.milton.http.SecurityManager;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
-import io.milton.http.fs.SimpleLockManager;
-import io.milton.http.fs.SimpleSecurityManager;
+import io.milton.resource.CollectionResource;
 import io.milton.resource.Resource;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
 
 import static org.apache.commons.lang3.Validate.*;
@@ -38,19 +40,54 @@ import static org.apache.commons.lang3.Validate.*;
  * A resource factory for the {@link MiltonHandler}. Besindes creating {@link MiltonFileResource}s and {@link
  * MiltonFolderResource}s, this class also holds a {@link SecurityManager} for authentication and an {@link
  * LockManager}.
+ * <p>
+ * A factory starts threads when it is created, the file system watcher of its attribute cache and the pool of its tree
+ * engine, so it must be {@link #close() closed} when it is no longer used.
  */
-public class MiltonWebDAVResourceFactory implements ResourceFactory {
+public class MiltonWebDAVResourceFactory implements ResourceFactory, Closeable {
+
+    /**
+     * Default size of the buffers used to copy file content.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
     private final File rootFolder;
     private final SecurityManager securityManager;
-    private final LockManager lockManager;
+    private PathLockManager lockManager = new PathLockManager();
+    private final FileAttributeCache attributeCache;
+    private CacheControlPolicy cacheControlPolicy = new CacheControlPolicy();
+    private ServerMetrics metrics = new ServerMetrics();
+    private ContentTypeResolver contentTypeResolver = new ContentTypeResolver();
+    private FolderListingRenderer listingRenderer = new FolderListingRenderer(
+            FolderListingRenderer.DEFAULT_MAX_CACHED_BYTES, FolderListingRenderer.DEFAULT_TTL_MILLIS);
+    private FileContentCache contentCache = new FileContentCache(0, FileContentCache.DEFAULT_MAX_FILE_SIZE);
+    private FolderSizeIndex folderSizeIndex;
+    private ChangeJournal changeJournal;
+    private FileContentTransfer contentTransfer;
+    private AtomicFileWriter fileWriter;
+    private FileCopier fileCopier = new FileCopier(-1);
+    private ParallelTreeEngine treeEngine;
 
     /**
+     * Creates a factory, which has to be {@link #close() closed} to stop its threads.
+     *
      * @param rootFolder  The root folder that will be served by this server instance
      * @param credentials The usernames (key) and their respective passwords (value) of the users, that are allowed to
      *                    authenticate at the server. If {@code null} or an {@link Map#isEmpty() empty map} is given,
      *                    authentication is disabled.
      */
     public MiltonWebDAVResourceFactory(File rootFolder, Map<String, String> credentials) {
+        this(rootFolder, credentials == null || credentials.isEmpty() ? null
+                : new HashedSecurityManager(HashedSecurityManager.hash(credentials)));
+    }
+
+    /**
+     * Creates a factory, which has to be {@link #close() closed} to stop its threads.
+     *
+     * @param rootFolder      The root folder that will be served by this server instance
+     * @param securityManager The security manager to authenticate users or {@code null} to disable authentication
+     */
+    public MiltonWebDAVResourceFactory(File rootFolder, SecurityManager securityManager) {
         notNull(rootFolder, "'rootFolder' may not be null");
 
         if (!rootFolder.exists() || !rootFolder.isDirectory()) {
@@ -58,26 +95,37 @@ public class MiltonWebDAVResourceFactory implements ResourceFactory {
         }
 
         this.rootFolder = rootFolder;
+        this.securityManager = securityManager;
+        this.attributeCache = new FileAttributeCache(FileAttributeCache.DEFAULT_MAX_ENTRIES,
+                FileAttributeCache.DEFAULT_TTL_MILLIS);
+        // files changed by other processes are dropped from the content cache as soon as the watcher reports them
+        this.attributeCache.addChangeListener(path -> contentCache.invalidateTree(path.toFile()));
+        this.attributeCache.addChangeListener(path -> folderSizeIndex.markChanged(path.toFile()));
+        this.attributeCache.addChangeListener(path -> changeJournal.recordExternalChange(path.toFile(),
+                attributeCache.isWatched(path.toFile())));
+        // the changes below a folder are unknown if its events have been lost, so sync tokens have to be rejected
+        this.attributeCache.addOverflowListener(path -> changeJournal.recordExternalChange(path.toFile(), false));
+        this.folderSizeIndex = new FolderSizeIndex(rootFolder, -1);
+        this.changeJournal = new ChangeJournal(rootFolder, null, ChangeJournal.DEFAULT_MAX_ENTRIES);
 
-        CacheManager cacheManager = new LocalCacheManager();
-        this.lockManager = new SimpleLockManager(cacheManager);
-
-        if (credentials != null && !credentials.isEmpty()) {
-            securityManager = new SimpleSecurityManager("", credentials);
-        } else {
-            securityManager = null;
-        }
+        ByteBufferPool bufferPool = new ArrayByteBufferPool();
+        this.contentTransfer = new FileContentTransfer(bufferPool, DEFAULT_BUFFER_SIZE);
+        this.fileWriter = new AtomicFileWriter(UploadDurability.NONE, bufferPool, DEFAULT_BUFFER_SIZE);
+        this.treeEngine = new ParallelTreeEngine(ParallelTreeEngine.defaultParallelism(), fileCopier);
+        this.metrics.setFileCopier(fileCopier);
+        this.metrics.setTreeEngine(treeEngine);
     }
 
     @Override
     public Resource getResource(String host, String path) throws NotAuthorizedException, BadRequestException {
         File fileToServe = new File(rootFolder, path);
-        if (!fileToServe.exists()) {
+        FileAttributes attributes = attributeCache.get(fileToServe);
+        if (!attributes.exists()) {
             return null;
-        } else if (fileToServe.isDirectory()) {
-            return new MiltonFolderResource(fileToServe, this);
+        } else if (attributes.isDirectory()) {
+            return new MiltonFolderResource(fileToServe, attributes, this);
         } else {
-            return new MiltonFileResource(fileToServe, this);
+            return new MiltonFileResource(fileToServe, attributes, this);
         }
     }
 
@@ -92,4 +140,226 @@ public class MiltonWebDAVResourceFactory implements ResourceFactory {
     public LockManager getLockManager() {
         return lockManager;
     }
+
+    /**
+     * @return the {@link #getLockManager() lock manager} with its methods beyond milton's {@link LockManager}
+     */
+    public PathLockManager getPathLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Replaces the lock manager and {@link PathLockManager#close() closes} the previous one. Locks held by the previous
+     * lock manager are lost.
+     *
+     * @param lockManager the new lock manager
+     * @throws IOException if closing the previous lock manager fails
+     */
+    public void setLockManager(PathLockManager lockManager) throws IOException {
+        notNull(lockManager, "'lockManager' may not be null");
+        PathLockManager previous = this.lockManager;
+        this.lockManager = lockManager;
+        previous.close();
+    }
+
+    public FileAttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    public CacheControlPolicy getCacheControlPolicy() {
+        return cacheControlPolicy;
+    }
+
+    public void setCacheControlPolicy(CacheControlPolicy cacheControlPolicy) {
+        notNull(cacheControlPolicy, "'cacheControlPolicy' may not be null");
+        this.cacheControlPolicy = cacheControlPolicy;
+    }
+
+    /**
+     * @return the metrics of the requests processed by the server and of the calls to the file system
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(ServerMetrics metrics) {
+        notNull(metrics, "'metrics' may not be null");
+        this.metrics = metrics;
+        metrics.setFileCopier(fileCopier);
+        metrics.setTreeEngine(treeEngine);
+    }
+
+    /**
+     * @return the resolver of the content types of all files and folders
+     */
+    public ContentTypeResolver getContentTypeResolver() {
+        return contentTypeResolver;
+    }
+
+    public void setContentTypeResolver(ContentTypeResolver contentTypeResolver) {
+        notNull(contentTypeResolver, "'contentTypeResolver' may not be null");
+        this.contentTypeResolver = contentTypeResolver;
+    }
+
+    /**
+     * @return the renderer of the HTML folder listings shown to browsers
+     */
+    public FolderListingRenderer getListingRenderer() {
+        return listingRenderer;
+    }
+
+    public void setListingRenderer(FolderListingRenderer listingRenderer) {
+        notNull(listingRenderer, "'listingRenderer' may not be null");
+        this.listingRenderer = listingRenderer;
+    }
+
+    /**
+     * @return the cache of the content of frequently requested files; disabled by default
+     */
+    public FileContentCache getContentCache() {
+        return contentCache;
+    }
+
+    public void setContentCache(FileContentCache contentCache) {
+        notNull(contentCache, "'contentCache' may not be null");
+        this.contentCache = contentCache;
+    }
+
+    /**
+     * @return the index of folder sizes for the quota properties; not {@link FolderSizeIndex#start() started} by
+     * default
+     */
+    public FolderSizeIndex getFolderSizeIndex() {
+        return folderSizeIndex;
+    }
+
+    /**
+     * Replaces the folder size index and {@link FolderSizeIndex#close() closes} the previous one.
+     *
+     * @param folderSizeIndex the new folder size index
+     * @throws IOException if closing the previous folder size index fails
+     */
+    public void setFolderSizeIndex(FolderSizeIndex folderSizeIndex) throws IOException {
+        notNull(folderSizeIndex, "'folderSizeIndex' may not be null");
+        FolderSizeIndex previous = this.folderSizeIndex;
+        this.folderSizeIndex = folderSizeIndex;
+        previous.close();
+    }
+
+    /**
+     * @return the journal of changes for {@code sync-collection} reports; not {@link
+     * ChangeJournal#open(java.util.function.Predicate) opened} by default
+     */
+    public ChangeJournal getChangeJournal() {
+        return changeJournal;
+    }
+
+    /**
+     * Replaces the change journal and {@link ChangeJournal#close() closes} the previous one.
+     *
+     * @param changeJournal the new change journal
+     * @throws IOException if closing the previous change journal fails
+     */
+    public void setChangeJournal(ChangeJournal changeJournal) throws IOException {
+        notNull(changeJournal, "'changeJournal' may not be null");
+        ChangeJournal previous = this.changeJournal;
+        this.changeJournal = changeJournal;
+        previous.close();
+    }
+
+    /**
+     * @return the transfer used to send the content of all files
+     */
+    public FileContentTransfer getContentTransfer() {
+        return contentTransfer;
+    }
+
+    public void setContentTransfer(FileContentTransfer contentTransfer) {
+        notNull(contentTransfer, "'contentTransfer' may not be null");
+        this.contentTransfer = contentTransfer;
+    }
+
+    /**
+     * @return the writer used for all uploads
+     */
+    public AtomicFileWriter getFileWriter() {
+        return fileWriter;
+    }
+
+    public void setFileWriter(AtomicFileWriter fileWriter) {
+        notNull(fileWriter, "'fileWriter' may not be null");
+        this.fileWriter = fileWriter;
+    }
+
+    /**
+     * @return the copier used for all server side copies
+     */
+    public FileCopier getFileCopier() {
+        return fileCopier;
+    }
+
+    public void setFileCopier(FileCopier fileCopier) {
+        notNull(fileCopier, "'fileCopier' may not be null");
+        this.fileCopier = fileCopier;
+        metrics.setFileCopier(fileCopier);
+    }
+
+    /**
+     * @return the engine used for recursive copies and deletes of folders
+     */
+    public ParallelTreeEngine getTreeEngine() {
+        return treeEngine;
+    }
+
+    /**
+     * Replaces the tree engine and {@link ParallelTreeEngine#close() closes} the previous one.
+     *
+     * @param treeEngine the new tree engine
+     */
+    public void setTreeEngine(ParallelTreeEngine treeEngine) {
+        notNull(treeEngine, "'treeEngine' may not be null");
+        ParallelTreeEngine previous = this.treeEngine;
+        this.treeEngine = treeEngine;
+        metrics.setTreeEngine(treeEngine);
+        previous.close();
+    }
+
+    /**
+     * Resolves the local folder of a collection given as destination of a {@code COPY} or {@code MOVE}.
+     *
+     * @param collection the destination collection
+     * @return the collection's folder
+     * @throws BadRequestException if the collection is not a folder served by this factory
+     */
+    public File getFolder(CollectionResource collection) throws BadRequestException {
+        if (!(collection instanceof MiltonFolderResource)) {
+            throw new BadRequestException("Destination " + collection.getName() + " is not a folder of this server");
+        }
+        return ((MiltonFolderResource) collection).getFile();
+    }
+
+    /**
+     * @param file a file below the {@link #getRootFolder() root folder}
+     * @return the path of the file relative to the root folder
+     */
+    public Path getRootRelativePath(File file) {
+        return rootFolder.toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath());
+    }
+
+    /**
+     * Releases the resources held by this factory, e.g. the file system watcher of the {@link #getAttributeCache()
+     * attribute cache}, the threads of the {@link #getTreeEngine() tree engine} and the {@link #getFolderSizeIndex()
+     * folder size index} and the journals of the {@link #getLockManager() lock manager} and the {@link
+     * #getChangeJournal() changes}.
+     *
+     * @throws IOException if releasing the resources fails
+     */
+    @Override
+    public void close() throws IOException {
+        treeEngine.close();
+        folderSizeIndex.close();
+        lockManager.close();
+        changeJournal.close();
+        attributeCache.close();
+    }
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies, moves and deletes folder trees. Copies and deletes run in parallel: every folder is processed by its own
+ * fork/join task, so wide and deep trees are spread across the threads of a dedicated {@link ForkJoinPool}. The
+ * pool's parallelism is bounded and independent of jetty's thread pool, so large tree operations cannot starve request
+ * processing; the request thread only waits for the result. Moves are renames wherever possible.
+ */
+public class ParallelTreeEngine implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelTreeEngine.class);
+
+    private final ForkJoinPool pool;
+    private final FileCopier fileCopier;
+    private final Set<TreeOperation> runningOperations = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completedOperations = new AtomicLong();
+    private final AtomicLong processedFolders = new AtomicLong();
+    private final AtomicLong processedFiles = new AtomicLong();
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong renamedMoves = new AtomicLong();
+    private final AtomicLong copiedMoves = new AtomicLong();
+
+    /**
+     * @param parallelism maximum number of threads working on tree operations
+     * @param fileCopier  the copier to copy single files with
+     */
+    public ParallelTreeEngine(int parallelism, FileCopier fileCopier) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.fileCopier = fileCopier;
+    }
+
+    /**
+     * @return a parallelism using half of the available processors
+     */
+    public static int defaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Copies a folder with all its content. Existing files in the target are replaced. If the target is inside the
+     * source, the target itself is not copied again.
+     *
+     * @param source the folder to copy
+     * @param target the copy to create
+     * @throws IOException if copying fails
+     */
+    public void copy(File source, File target) throws IOException {
+        TreeOperation operation = new TreeOperation(TreeOperation.Type.COPY, source);
+        Path targetPath = target.toPath().toAbsolutePath().normalize();
+        run(operation, new CopyTask(operation, source.toPath().toAbsolutePath().normalize(), targetPath, targetPath));
+    }
+
+    /**
+     * Deletes a folder with all its content. Symbolic links are deleted, not followed.
+     *
+     * @param folder the folder to delete
+     * @throws IOException if deleting fails
+     */
+    public void delete(File folder) throws IOException {
+        TreeOperation operation = new TreeOperation(TreeOperation.Type.DELETE, folder);
+        run(operation, new DeleteTask(operation, folder.toPath()));
+    }
+
+    /**
+     * Moves a file or folder. The move is done as rename, which is atomic and independent of the size of the moved tree.
+     * Only if source and target are on different file systems, the source is copied and deleted afterwards.
+     *
+     * @param source the file or folder to move
+     * @param target the new location
+     * @throws IOException if moving fails
+     */
+    public void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            renamedMoves.incrementAndGet();
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.debug("Cannot rename {} to {}, copying across file systems", source, target, e);
+        }
+
+        long start = System.currentTimeMillis();
+        BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isDirectory()) {
+            copy(source, target);
+            delete(source);
+        } else {
+            fileCopier.copyFile(source.toPath(), target.toPath(), attributes.size());
+            Files.delete(source.toPath());
+        }
+        copiedMoves.incrementAndGet();
+        LOGGER.info("Moved {} to {} across file systems by copy and delete in {} ms", source, target,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return number of moves done by renaming
+     */
+    public long getRenamedMoves() {
+        return renamedMoves.get();
+    }
+
+    /**
+     * @return number of moves across file systems, done by copying and deleting
+     */
+    public long getCopiedMoves() {
+        return copiedMoves.get();
+    }
+
+    /**
+     * @return the progress of all currently running operations
+     */
+    public Collection<TreeOperation> getRunningOperations() {
+        return Collections.unmodifiableCollection(new ArrayList<>(runningOperations));
+    }
+
+    /**
+     * @return number of completed (successful or failed) operations
+     */
+    public long getCompletedOperations() {
+        return completedOperations.get();
+    }
+
+    /**
+     * @return number of folders processed by all completed operations
+     */
+    public long getProcessedFolders() {
+        return processedFolders.get();
+    }
+
+    /**
+     * @return number of files processed by all completed operations
+     */
+    public long getProcessedFiles() {
+        return processedFiles.get();
+    }
+
+    /**
+     * @return number of bytes of the files processed by all completed operations
+     */
+    public long getProcessedBytes() {
+        return processedBytes.get();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(TreeOperation operation, RecursiveAction task) throws IOException {
+        runningOperations.add(operation);
+        try {
+            pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw unwrap(e);
+        } finally {
+            runningOperations.remove(operation);
+            completedOperations.incrementAndGet();
+            processedFolders.addAndGet(operation.getFolders());
+            processedFiles.addAndGet(operation.getFiles());
+            processedBytes.addAndGet(operation.getBytes());
+            LOGGER.debug("Finished {}", operation);
+        }
+    }
+
+    private static IOException unwrap(UncheckedIOException e) {
+        // fork/join may rethrow a copy of the task's exception, so search the whole chain for the original cause
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return (IOException) t;
+            }
+        }
+        return new IOException(e);
+    }
+
+    private static List<Path> list(Path folder) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    private final class CopyTask extends RecursiveAction {
+        private final TreeOperation operation;
+        private final Path source;
+        private final Path target;
+        private final Path copyRoot;
+
+        /**
+         * @param copyRoot the target of the whole copy, which is skipped if it is found inside the source
+         */
+        private CopyTask(TreeOperation operation, Path source, Path target, Path copyRoot) {
+            this.operation = operation;
+            this.source = source;
+            this.target = target;
+            this.copyRoot = copyRoot;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectories(target);
+
+                List<CopyTask> subfolders = new ArrayList<>();
+                for (Path child : list(source)) {
+                    if (child.equals(copyRoot) || AtomicFileWriter.isTemporaryFile(child)) {
+                        continue;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    Path childTarget = target.resolve(child.getFileName().toString());
+                    if (attributes.isDirectory()) {
+                        subfolders.add(new CopyTask(operation, child, childTarget, copyRoot));
+                    } else {
+                        fileCopier.copyFile(child, childTarget, attributes.size());
+                        operation.fileDone(attributes.size());
+                    }
+                }
+                ForkJoinTask.invokeAll(subfolders);
+
+                Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+                operation.folderDone();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final class DeleteTask extends RecursiveAction {
+        private final TreeOperation operation;
+        private final Path folder;
+
+        private DeleteTask(TreeOperation operation, Path folder) {
+            this.operation = operation;
+            this.folder = folder;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<DeleteTask> subfolders = new ArrayList<>();
+                for (Path child : list(folder)) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subfolders.add(new DeleteTask(operation, child));
+                    } else {
+                        Files.delete(child);
+                        operation.fileDone(attributes.size());
+                    }
+                }
+                ForkJoinTask.invokeAll(subfolders);
+
+                Files.delete(folder);
+                operation.folderDone();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A salted PBKDF2 (HMAC-SHA256) hash of a password. The encoded form {@code pbkdf2-sha256$ITERATIONS$SALT$HASH}, with
+ * salt and hash in Base64, is used in credentials files.
+ */
+public final class PasswordHash {
+
+    public static final int DEFAULT_ITERATIONS = 310_000;
+
+    private static final String ALGORITHM = "pbkdf2-sha256";
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Hashes a password with a random salt and the {@link #DEFAULT_ITERATIONS default iterations}.
+     *
+     * @param password the password to hash
+     * @return the hash
+     */
+    public static PasswordHash create(char[] password) {
+        notNull(password, "'password' may not be null");
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new PasswordHash(DEFAULT_ITERATIONS, salt, derive(password, salt, DEFAULT_ITERATIONS, HASH_LENGTH));
+    }
+
+    /**
+     * @param encoded a hash in its {@link #toString() encoded form}
+     * @return the decoded hash
+     * @throws IllegalArgumentException if the encoded hash is malformed
+     */
+    public static PasswordHash parse(String encoded) {
+        notNull(encoded, "'encoded' may not be null");
+        String[] parts = encoded.split("\\$");
+        isTrue(parts.length == 4 && ALGORITHM.equals(parts[0]), "Unsupported password hash, expected %s$...",
+                ALGORITHM);
+        int iterations = Integer.parseInt(parts[1]);
+        isTrue(iterations > 0, "Iterations of password hash must be positive");
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] hash = Base64.getDecoder().decode(parts[3]);
+        // PBKDF2 rejects empty salts and keys, which would otherwise fail every login with this hash
+        isTrue(salt.length > 0 && hash.length > 0, "Salt and hash of password hash may not be empty");
+        return new PasswordHash(iterations, salt, hash);
+    }
+
+    /**
+     * Checks a password against this hash. This is deliberately slow.
+     *
+     * @param password the password to check
+     * @return {@code true} if the password matches
+     */
+    public boolean matches(String password) {
+        if (password == null) {
+            return false;
+        }
+        char[] chars = password.toCharArray();
+        try {
+            return MessageDigest.isEqual(hash, derive(chars, salt, iterations, hash.length));
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * @return the encoded form of this hash
+     */
+    @Override
+    public String toString() {
+        return ALGORITHM + "$" + iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$"
+                + Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // PBKDF2WithHmacSHA256 is available in every Java 8+ runtime
+            throw new IllegalStateException("Cannot hash password", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.milton.http.LockInfo;
+import io.milton.http.LockManager;
+import io.milton.http.LockResult;
+import io.milton.http.LockTimeout;
+import io.milton.http.LockToken;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.resource.CollectionResource;
+import io.milton.resource.LockableResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A {@link LockManager} for many concurrent lock, refresh and lookup requests. Locks are indexed by path and by token
+ * in concurrent maps, so lookups never block. Creating a lock only synchronizes on one of several stripes of the
+ * locked path; only depth-infinity locks on collections need exclusive access to the whole index. A depth-infinity
+ * lock also locks all resources below its collection: as long as no such lock exists, checking a path is a single map
+ * lookup, otherwise the ancestors of the path are checked as well.
+ * <p>
+ * Like milton's {@code SimpleLockManager}, every resource may hold only one lock, independent of the requested scope.
+ * Expired locks are removed by a background sweeper. If a journal file is given, all changes are appended to it and
+ * the locks are restored from it when the server restarts.
+ */
+public class PathLockManager implements LockManager, Closeable {
+
+    /**
+     * Timeout in seconds of locks requested without or with an infinite timeout.
+     */
+    public static final long DEFAULT_TIMEOUT_SECONDS = 10 * 60;
+
+    /**
+     * Maximum timeout in seconds of a lock.
+     */
+    public static final long MAX_TIMEOUT_SECONDS = 60 * 60;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PathLockManager.class);
+    private static final int STRIPES = 64;
+    private static final long SWEEP_INTERVAL_SECONDS = 30;
+    private static final int COMPACTION_THRESHOLD = 10_000;
+
+    private final Map<String, ActiveLock> locksByPath = new ConcurrentHashMap<>();
+    private final Map<String, ActiveLock> locksByToken = new ConcurrentHashMap<>();
+    private final Map<String, Integer> descendantLocks = new ConcurrentHashMap<>();
+    private final AtomicInteger infiniteLocks = new AtomicInteger();
+    private final ReadWriteLock treeLock = new ReentrantReadWriteLock();
+    private final Object[] stripes = newStripes();
+    private final ScheduledExecutorService sweeper;
+    private final File journal;
+    private final Object journalMonitor = new Object();
+    private BufferedWriter journalWriter;
+    private int journalRecords;
+
+    /**
+     * Creates a lock manager that keeps its locks in memory only.
+     */
+    public PathLockManager() {
+        this.journal = null;
+        this.sweeper = startSweeper();
+    }
+
+    /**
+     * Creates a lock manager that persists its locks to the given journal. Locks found in an existing journal are
+     * restored, unless they have expired in the meantime.
+     *
+     * @param journal the append-only journal file
+     * @throws IOException if the journal cannot be read or written
+     */
+    public PathLockManager(File journal) throws IOException {
+        notNull(journal, "'journal' may not be null");
+        this.journal = journal;
+        restore();
+        this.sweeper = startSweeper();
+    }
+
+    @Override
+    public LockResult lock(LockTimeout timeout, LockInfo lockInfo, LockableResource resource) {
+        String path = resource.getUniqueId();
+        boolean infinite = lockInfo.depth == LockInfo.LockDepth.INFINITY && resource instanceof CollectionResource;
+
+        // depth-infinity locks must see a stable set of locks below their path, all others only exclude each other
+        // per path
+        Lock indexLock = infinite ? treeLock.writeLock() : treeLock.readLock();
+        indexLock.lock();
+        try {
+            synchronized (stripeOf(path)) {
+                long now = System.currentTimeMillis();
+                if (findLock(path, now) != null || (infinite && hasLiveDescendants(path, now))) {
+                    LOGGER.debug("{} is already locked", path);
+                    return LockResult.failed(LockResult.FailureReason.ALREADY_LOCKED);
+                }
+
+                ActiveLock expired = locksByPath.get(path);
+                if (expired != null) {
+                    remove(expired);
+                }
+
+                LockTimeout.DateAndSeconds lockedUntil = timeout.getLockedUntil(DEFAULT_TIMEOUT_SECONDS,
+                        MAX_TIMEOUT_SECONDS);
+                LockToken token = new LockToken(UUID.randomUUID().toString(), lockInfo,
+                        new LockTimeout(lockedUntil.seconds));
+                ActiveLock activeLock = new ActiveLock(path, infinite, token, lockedUntil.date.getTime());
+                add(activeLock);
+                appendToJournal(lockRecord(activeLock));
+                return LockResult.success(token);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    @Override
+    public LockResult refresh(String tokenId, LockTimeout timeout, LockableResource resource) {
+        ActiveLock activeLock = locksByToken.get(tokenId);
+        if (activeLock == null || activeLock.isExpired(System.currentTimeMillis())
+                || !activeLock.covers(resource.getUniqueId())) {
+            LOGGER.debug("No lock with token {} on {} to refresh", tokenId, resource.getUniqueId());
+            return LockResult.failed(LockResult.FailureReason.PRECONDITION_FAILED);
+        }
+
+        LockTimeout.DateAndSeconds lockedUntil = timeout.getLockedUntil(DEFAULT_TIMEOUT_SECONDS, MAX_TIMEOUT_SECONDS);
+        LockToken token = new LockToken(tokenId, activeLock.token.info, new LockTimeout(lockedUntil.seconds));
+        activeLock.refresh(token, lockedUntil.date.getTime());
+        appendToJournal("REFRESH\t" + tokenId + "\t" + activeLock.expiresAt + "\t" + lockedUntil.seconds);
+        return LockResult.success(token);
+    }
+
+    @Override
+    public void unlock(String tokenId, LockableResource resource) throws NotAuthorizedException {
+        String path = resource.getUniqueId();
+        ActiveLock activeLock = locksByToken.get(tokenId);
+        if (activeLock != null && activeLock.covers(path)) {
+            remove(activeLock);
+        } else if (findLock(path, System.currentTimeMillis()) != null) {
+            LOGGER.debug("Token {} does not match the lock on {}", tokenId, path);
+            throw new NotAuthorizedException(resource);
+        }
+    }
+
+    @Override
+    public LockToken getCurrentToken(LockableResource resource) {
+        ActiveLock activeLock = findLock(resource.getUniqueId(), System.currentTimeMillis());
+        return activeLock == null ? null : activeLock.token;
+    }
+
+    /**
+     * Removes all locks on the given path and below it, e.g. after the resource at the path has been deleted or moved
+     * away.
+     *
+     * @param path the {@link LockableResource#getUniqueId() unique id} of the removed resource
+     */
+    public void releaseLocks(String path) {
+        for (ActiveLock activeLock : locksByPath.values()) {
+            if (isSameOrAncestor(path, activeLock.path)) {
+                remove(activeLock);
+            }
+        }
+    }
+
+    /**
+     * @return the number of currently held locks, including expired locks not yet swept
+     */
+    public int getLockCount() {
+        return locksByPath.size();
+    }
+
+    /**
+     * Stops the sweeper and closes the journal.
+     *
+     * @throws IOException if closing the journal fails
+     */
+    @Override
+    public void close() throws IOException {
+        sweeper.shutdownNow();
+        synchronized (journalMonitor) {
+            if (journalWriter != null) {
+                journalWriter.close();
+                journalWriter = null;
+            }
+        }
+    }
+
+    private ActiveLock findLock(String path, long now) {
+        ActiveLock activeLock = locksByPath.get(path);
+        if (activeLock != null && !activeLock.isExpired(now)) {
+            return activeLock;
+        }
+        if (infiniteLocks.get() == 0) {
+            return null;
+        }
+        for (String ancestor = parentOf(path); ancestor != null; ancestor = parentOf(ancestor)) {
+            activeLock = locksByPath.get(ancestor);
+            if (activeLock != null && activeLock.infinite && !activeLock.isExpired(now)) {
+                return activeLock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must only be called while holding the write lock of the {@link #treeLock}.
+     */
+    private boolean hasLiveDescendants(String path, long now) {
+        if (!descendantLocks.containsKey(path)) {
+            return false;
+        }
+        boolean live = false;
+        for (ActiveLock activeLock : locksByPath.values()) {
+            if (!activeLock.path.equals(path) && isSameOrAncestor(path, activeLock.path)) {
+                if (activeLock.isExpired(now)) {
+                    remove(activeLock);
+                } else {
+                    live = true;
+                }
+            }
+        }
+        return live;
+    }
+
+    private void add(ActiveLock activeLock) {
+        locksByPath.put(activeLock.path, activeLock);
+        locksByToken.put(activeLock.token.tokenId, activeLock);
+        if (activeLock.infinite) {
+            infiniteLocks.incrementAndGet();
+        }
+        for (String ancestor = parentOf(activeLock.path); ancestor != null; ancestor = parentOf(ancestor)) {
+            descendantLocks.merge(ancestor, 1, Integer::sum);
+        }
+    }
+
+    private void remove(ActiveLock activeLock) {
+        if (!locksByPath.remove(activeLock.path, activeLock)) {
+            return;
+        }
+        locksByToken.remove(activeLock.token.tokenId);
+        if (activeLock.infinite) {
+            infiniteLocks.decrementAndGet();
+        }
+        for (String ancestor = parentOf(activeLock.path); ancestor != null; ancestor = parentOf(ancestor)) {
+            descendantLocks.computeIfPresent(ancestor, (key, count) -> count > 1 ? count - 1 : null);
+        }
+        appendToJournal("UNLOCK\t" + activeLock.token.tokenId);
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        int swept = 0;
+        for (ActiveLock activeLock : locksByPath.values()) {
+            if (activeLock.isExpired(now)) {
+                remove(activeLock);
+                swept++;
+            }
+        }
+        if (swept > 0) {
+            LOGGER.debug("Removed {} expired locks", swept);
+        }
+
+        synchronized (journalMonitor) {
+            if (journalWriter != null && journalRecords > COMPACTION_THRESHOLD
+                    && journalRecords > 4 * locksByPath.size()) {
+                try {
+                    compactJournal();
+                } catch (IOException e) {
+                    LOGGER.error("Error compacting lock journal {}", journal, e);
+                }
+            }
+        }
+    }
+
+    private ScheduledExecutorService startSweeper() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "webdav-lock-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return executor;
+    }
+
+    private static Object[] newStripes() {
+        Object[] stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        return stripes;
+    }
+
+    private Object stripeOf(String path) {
+        return stripes[(path.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private static String parentOf(String path) {
+        int separator = path.lastIndexOf(File.separatorChar);
+        if (separator < 0 || path.length() == 1) {
+            return null;
+        }
+        return separator == 0 ? path.substring(0, 1) : path.substring(0, separator);
+    }
+
+    private static boolean isSameOrAncestor(String ancestor, String path) {
+        if (!path.startsWith(ancestor)) {
+            return false;
+        }
+        return path.length() == ancestor.length() || ancestor.endsWith(File.separator)
+                || path.charAt(ancestor.length()) == File.separatorChar;
+    }
+
+    // ----- journal -----
+
+    private void restore() throws IOException {
+        Map<String, ActiveLock> restored = new LinkedHashMap<>();
+        if (journal.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line, restored);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (ActiveLock activeLock : restored.values()) {
+            if (!activeLock.isExpired(now) && !locksByPath.containsKey(activeLock.path)) {
+                add(activeLock);
+            }
+        }
+        LOGGER.info("Restored {} locks from journal {}", locksByPath.size(), journal);
+
+        synchronized (journalMonitor) {
+            compactJournal();
+        }
+    }
+
+    private void replay(String line, Map<String, ActiveLock> restored) throws UnsupportedEncodingException {
+        String[] fields = line.split("\t", -1);
+        try {
+            switch (fields[0]) {
+                case "LOCK":
+                    LockInfo lockInfo = new LockInfo(LockInfo.LockScope.valueOf(fields[5]),
+                            LockInfo.LockType.valueOf(fields[6]), decode(fields[7]),
+                            LockInfo.LockDepth.valueOf(fields[4]));
+                    LockToken token = new LockToken(fields[1], lockInfo, new LockTimeout(Long.parseLong(fields[3])));
+                    String path = decode(fields[8]);
+                    restored.put(fields[1], new ActiveLock(path, lockInfo.depth == LockInfo.LockDepth.INFINITY
+                            && new File(path).isDirectory(), token, Long.parseLong(fields[2])));
+                    break;
+                case "REFRESH":
+                    ActiveLock activeLock = restored.get(fields[1]);
+                    if (activeLock != null) {
+                        activeLock.refresh(new LockToken(fields[1], activeLock.token.info,
+                                new LockTimeout(Long.parseLong(fields[3]))), Long.parseLong(fields[2]));
+                    }
+                    break;
+                case "UNLOCK":
+                    restored.remove(fields[1]);
+                    break;
+                default:
+                    LOGGER.warn("Ignoring unknown lock journal record {}", line);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            // most likely the last record, cut off by a crash
+            LOGGER.warn("Ignoring malformed lock journal record {}", line, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live locks. Must be called while holding the {@link #journalMonitor}.
+     */
+    private void compactJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        Path compacted = journal.toPath().resolveSibling(journal.getName() + ".compact");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (ActiveLock activeLock : locksByPath.values()) {
+                writer.write(lockRecord(activeLock));
+                writer.newLine();
+            }
+        }
+        Files.move(compacted, journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journalWriter = Files.newBufferedWriter(journal.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        journalRecords = locksByPath.size();
+        LOGGER.debug("Compacted lock journal {} to {} records", journal, journalRecords);
+    }
+
+    private void appendToJournal(String record) {
+        if (journal == null) {
+            return;
+        }
+        synchronized (journalMonitor) {
+            if (journalWriter == null) {
+                return;
+            }
+            try {
+                journalWriter.write(record);
+                journalWriter.newLine();
+                journalWriter.flush();
+                journalRecords++;
+            } catch (IOException e) {
+                // the lock itself is still valid, it only will not survive a restart
+                LOGGER.error("Error writing lock journal {}", journal, e);
+            }
+        }
+    }
+
+    private static String lockRecord(ActiveLock activeLock) {
+        LockToken token = activeLock.token;
+        return "LOCK\t" + token.tokenId + "\t" + activeLock.expiresAt + "\t" + token.timeout.getSeconds() + "\t"
+                + token.info.depth + "\t" + token.info.scope + "\t" + token.info.type + "\t"
+                + encode(token.info.lockedByUser) + "\t" + encode(activeLock.path);
+    }
+
+    private static String encode(String value) {
+        try {
+            return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return value.isEmpty() ? null : URLDecoder.decode(value, "UTF-8");
+    }
+
+    /**
+     * A lock held on a single path.
+     */
+    private static final class ActiveLock {
+
+        private final String path;
+        private final boolean infinite;
+        private volatile LockToken token;
+        private volatile long expiresAt;
+
+        private ActiveLock(String path, boolean infinite, LockToken token, long expiresAt) {
+            this.path = path;
+            this.infinite = infinite;
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+        private synchronized void refresh(LockToken token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+
+        private boolean covers(String path) {
+            return infinite ? isSameOrAncestor(this.path, path) : this.path.equals(path);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * Serves precompressed siblings of a file ({@code FILE.br}, {@code FILE.gz}) for {@code GET} and {@code HEAD}
+ * requests, if the client accepts the encoding and the sibling is not older than the file itself. This way frequently
+ * requested static files need no CPU for compression.
+ * <p>
+ * Conditional and range requests as well as requests without valid credentials are left to milton.
+ */
+public class PrecompressedFileHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrecompressedFileHandler.class);
+
+    private static final String[][] ENCODINGS = {{"br", ".br"}, {"gzip", ".gz"}};
+
+    private final MiltonWebDAVResourceFactory resourceFactory;
+
+    public PrecompressedFileHandler(MiltonWebDAVResourceFactory resourceFactory) {
+        this.resourceFactory = resourceFactory;
+    }
+
+    /**
+     * Serves a precompressed sibling if possible.
+     *
+     * @param request  the request
+     * @param response the response to write to
+     * @return {@code true} if the response has been written, {@code false} if the request has to be handled by milton
+     * @throws IOException if writing the response fails
+     */
+    public boolean handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean head = "HEAD".equals(request.getMethod());
+        if ((!head && !"GET".equals(request.getMethod())) || request.getHeader("Accept-Encoding") == null
+                || hasConditionalOrRangeHeader(request)) {
+            return false;
+        }
+
+        String path = HttpRequests.decodePath(request);
+        if (path == null || path.endsWith("/")) {
+            return false;
+        }
+
+        File file = new File(resourceFactory.getRootFolder(), path);
+        FileAttributes fileAttributes = resourceFactory.getAttributeCache().get(file);
+        if (!fileAttributes.exists() || fileAttributes.isDirectory()) {
+            return false;
+        }
+
+        for (String[] encoding : ENCODINGS) {
+            if (!accepts(request, encoding[0])) {
+                continue;
+            }
+
+            File sibling = new File(file.getParentFile(), file.getName() + encoding[1]);
+            FileAttributes siblingAttributes = resourceFactory.getAttributeCache().get(sibling);
+            if (!siblingAttributes.exists() || siblingAttributes.isDirectory()
+                    || siblingAttributes.getLastModified() < fileAttributes.getLastModified()
+                    || !HttpRequests.isAuthenticated(request, resourceFactory.getSecurityManager())) {
+                continue;
+            }
+
+            LOGGER.debug("Serving {} encoded sibling of {}", encoding[0], file);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(resourceFactory.getContentTypeResolver().getContentType(file, fileAttributes,
+                    request.getHeader("Accept")));
+            response.setHeader("Content-Encoding", encoding[0]);
+            response.setHeader("Vary", "Accept-Encoding");
+            response.setDateHeader("Last-Modified", fileAttributes.getLastModified());
+            response.setContentLengthLong(siblingAttributes.getSize());
+            Long maxAge = resourceFactory.getCacheControlPolicy().getMaxAgeSeconds(
+                    resourceFactory.getRootRelativePath(file));
+            if (maxAge != null) {
+                response.setHeader("Cache-Control", "max-age=" + maxAge);
+            }
+
+            if (!head) {
+                resourceFactory.getContentTransfer().send(sibling, null, response.getOutputStream());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean hasConditionalOrRangeHeader(HttpServletRequest request) {
+        Enumeration<String> names = request.getHeaderNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            if (name.regionMatches(true, 0, "If-", 0, 3) || "Range".equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean accepts(HttpServletRequest request, String encoding) {
+        Enumeration<String> values = request.getHeaders("Accept-Encoding");
+        while (values.hasMoreElements()) {
+            for (String element : values.nextElement().split(",")) {
+                String[] parts = element.trim().split(";");
+                if (!parts[0].trim().equalsIgnoreCase(encoding)) {
+                    continue;
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality) == 0;
+        } catch (NumberFormatException e) { //NOSONAR
+            return false;
+        }
+    }
+}
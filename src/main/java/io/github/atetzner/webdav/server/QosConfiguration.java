@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Configuration of the admission control and bandwidth limits applied by the {@link AdmissionControlHandler}. A client
+ * is the authenticated user or, for anonymous requests and until the user's credentials are verified, the remote
+ * address. The fields are annotated to be used as
+ * {@link com.beust.jcommander.ParametersDelegate parameter delegate} of the {@link CommandLineArgs}.
+ */
+public class QosConfiguration {
+
+    @Parameter(names = {"--max-requests"}, description = "Maximum number of requests processed concurrently, further requests are answered with 503, -1 for unlimited")
+    private int maxRequests = -1;
+
+    @Parameter(names = {"--max-requests-per-client"}, description = "Maximum number of requests processed concurrently for one user or, if anonymous, IP address, -1 for unlimited")
+    private int maxRequestsPerClient = -1;
+
+    @Parameter(names = {"--metadata-reserved-requests"}, description = "Number of the --max-requests only available to OPTIONS, PROPFIND and HEAD requests, so browsing stays responsive during bulk transfers")
+    private int metadataReservedRequests = 0;
+
+    @Parameter(names = {"--download-rate"}, description = "Maximum bytes per second sent to one user or IP address, -1 for unlimited")
+    private long downloadRate = -1;
+
+    @Parameter(names = {"--upload-rate"}, description = "Maximum bytes per second received from one user or IP address, -1 for unlimited")
+    private long uploadRate = -1;
+
+    @Parameter(names = {"--max-throttled-uploads"}, description = "Maximum number of uploads limited by --upload-rate processed concurrently, each holds a thread while it waits, -1 for unlimited")
+    private int maxThrottledUploads = 100;
+
+    @Parameter(names = {"--retry-after"}, description = "Seconds clients are asked to wait in the Retry-After header of 503 responses")
+    private int retryAfterSeconds = 1;
+
+    /**
+     * @return if any limit is configured
+     */
+    public boolean isEnabled() {
+        return maxRequests >= 0 || maxRequestsPerClient >= 0 || downloadRate >= 0 || uploadRate >= 0;
+    }
+
+    /**
+     * Maximum number of concurrently processed requests. Command line arg: {@code --max-requests}
+     *
+     * @return maximum number of requests, negative for unlimited
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Maximum number of concurrently processed requests of one client. Command line arg:
+     * {@code --max-requests-per-client}
+     *
+     * @return maximum number of requests, negative for unlimited
+     */
+    public int getMaxRequestsPerClient() {
+        return maxRequestsPerClient;
+    }
+
+    public void setMaxRequestsPerClient(int maxRequestsPerClient) {
+        this.maxRequestsPerClient = maxRequestsPerClient;
+    }
+
+    /**
+     * Number of the {@link #getMaxRequests() maxRequests}, that only {@code OPTIONS}, {@code PROPFIND} and
+     * {@code HEAD} requests may use. Command line arg: {@code --metadata-reserved-requests}
+     *
+     * @return number of reserved requests
+     */
+    public int getMetadataReservedRequests() {
+        return metadataReservedRequests;
+    }
+
+    public void setMetadataReservedRequests(int metadataReservedRequests) {
+        this.metadataReservedRequests = metadataReservedRequests;
+    }
+
+    /**
+     * Maximum rate of response bytes per client. Command line arg: {@code --download-rate}
+     *
+     * @return bytes per second, negative for unlimited
+     */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    public void setDownloadRate(long downloadRate) {
+        this.downloadRate = downloadRate;
+    }
+
+    /**
+     * Maximum rate of request body bytes per client. Command line arg: {@code --upload-rate}
+     *
+     * @return bytes per second, negative for unlimited
+     */
+    public long getUploadRate() {
+        return uploadRate;
+    }
+
+    public void setUploadRate(long uploadRate) {
+        this.uploadRate = uploadRate;
+    }
+
+    /**
+     * Maximum number of concurrently processed uploads limited by the {@link #getUploadRate() uploadRate}. Reading a
+     * request body is blocking, so a throttled upload holds a thread of the connector while it waits for its client's
+     * rate; keep it below the connector's {@code maxThreads}. Command line arg: {@code --max-throttled-uploads}
+     *
+     * @return maximum number of throttled uploads, negative for unlimited
+     */
+    public int getMaxThrottledUploads() {
+        return maxThrottledUploads;
+    }
+
+    public void setMaxThrottledUploads(int maxThrottledUploads) {
+        this.maxThrottledUploads = maxThrottledUploads;
+    }
+
+    /**
+     * Seconds rejected clients should wait before retrying. Command line arg: {@code --retry-after}
+     *
+     * @return seconds for the {@code Retry-After} header
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and {@link LatencyHistogram latency histograms} of the requests processed by the server, broken down by
+ * WebDAV method and response status, plus the bytes transferred, the requests in flight and the calls to the file
+ * system. All counters are lock-free, so recording adds no contention to request processing. The metrics are exposed
+ * via JMX and as Prometheus text by the {@link MetricsHandler}. The JMX view also includes the counters of the
+ * components set by the {@link MiltonWebDAVResourceFactory}, i.e. of the {@link FileCopier} and the
+ * {@link ParallelTreeEngine}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    /**
+     * Object name of the metrics' MBean.
+     */
+    public static final String OBJECT_NAME = "io.github.atetzner.webdav:type=ServerMetrics";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "PUT", "POST", "DELETE",
+            "OPTIONS", "PROPFIND", "PROPPATCH", "MKCOL", "COPY", "MOVE", "LOCK", "UNLOCK", "REPORT"));
+
+    /**
+     * The calls to the file system counted by the resources.
+     */
+    public enum FileSystemCall {
+        STAT, LIST, READ, WRITE, MKDIR, COPY, MOVE, DELETE
+    }
+
+    private final Map<RequestKey, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder[] fileSystemCalls = new LongAdder[FileSystemCall.values().length];
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private volatile FileCopier fileCopier = null;
+    private volatile ParallelTreeEngine treeEngine = null;
+
+    public ServerMetrics() {
+        for (int i = 0; i < fileSystemCalls.length; i++) {
+            fileSystemCalls[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Must be called when the processing of a request starts and be followed by {@link #requestFinished(String, int,
+     * long, long, long)}.
+     *
+     * @param method the request's method
+     */
+    public void requestStarted(String method) {
+        activeRequests.incrementAndGet();
+        if (isTransfer(method)) {
+            activeTransfers.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param method        the request's method
+     * @param status        the status of the response
+     * @param nanos         the processing time of the request in nanoseconds
+     * @param bytesReceived the number of bytes of the request body
+     * @param bytesSent     the number of bytes of the response
+     */
+    public void requestFinished(String method, int status, long nanos, long bytesReceived, long bytesSent) {
+        activeRequests.decrementAndGet();
+        if (isTransfer(method)) {
+            activeTransfers.decrementAndGet();
+        }
+        latencies.computeIfAbsent(new RequestKey(normalize(method), status), key -> new LatencyHistogram())
+                .record(nanos);
+        this.bytesReceived.add(bytesReceived);
+        this.bytesSent.add(bytesSent);
+    }
+
+    /**
+     * Counts a request rejected by the admission control, which is not processed and therefore not
+     * {@link #requestStarted(String) started}.
+     */
+    public void requestRejected() {
+        rejectedRequests.increment();
+    }
+
+    /**
+     * @param call the call to the file system to count
+     */
+    public void countFileSystemCall(FileSystemCall call) {
+        fileSystemCalls[call.ordinal()].increment();
+    }
+
+    /**
+     * @param fileCopier the copier whose copies are reported via JMX
+     */
+    public void setFileCopier(FileCopier fileCopier) {
+        this.fileCopier = fileCopier;
+    }
+
+    /**
+     * @param treeEngine the engine whose tree operations are reported via JMX
+     */
+    public void setTreeEngine(ParallelTreeEngine treeEngine) {
+        this.treeEngine = treeEngine;
+    }
+
+    /**
+     * @param method the request's method
+     * @param status the status of the response
+     * @return the latencies of the requests with the given method and status or {@code null} if there were none
+     */
+    public LatencyHistogram getLatencies(String method, int status) {
+        return latencies.get(new RequestKey(normalize(method), status));
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        for (LatencyHistogram histogram : latencies.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        latencies.forEach((key, histogram) -> result.put(key.toString(), histogram.getCount()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        latencies.forEach((key, histogram) -> result.put(key.toString(),
+                histogram.getSumMicros() / 1000.0 / Math.max(1, histogram.getCount())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getP99LatencyMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        latencies.forEach((key, histogram) -> result.put(key.toString(), histogram.getQuantileMicros(0.99) / 1000.0));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFileSystemCalls() {
+        Map<String, Long> result = new TreeMap<>();
+        for (FileSystemCall call : FileSystemCall.values()) {
+            result.put(call.name(), fileSystemCalls[call.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCopyCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        FileCopier copier = fileCopier;
+        if (copier != null) {
+            for (CopyStrategy strategy : CopyStrategy.values()) {
+                result.put(strategy.name(), copier.getCopyCount(strategy));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getRunningTreeOperations() {
+        List<String> result = new ArrayList<>();
+        ParallelTreeEngine engine = treeEngine;
+        if (engine != null) {
+            for (TreeOperation operation : engine.getRunningOperations()) {
+                result.add(operation.toString());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getCompletedTreeOperations() {
+        ParallelTreeEngine engine = treeEngine;
+        return engine == null ? 0 : engine.getCompletedOperations();
+    }
+
+    @Override
+    public long getTreeOperationFolders() {
+        ParallelTreeEngine engine = treeEngine;
+        return engine == null ? 0 : engine.getProcessedFolders();
+    }
+
+    @Override
+    public long getTreeOperationFiles() {
+        ParallelTreeEngine engine = treeEngine;
+        return engine == null ? 0 : engine.getProcessedFiles();
+    }
+
+    @Override
+    public long getTreeOperationBytes() {
+        ParallelTreeEngine engine = treeEngine;
+        return engine == null ? 0 : engine.getProcessedBytes();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @param w the writer to write to
+     * @throws IOException if writing fails
+     */
+    public void writePrometheus(Writer w) throws IOException {
+        w.write("# HELP webdav_request_seconds Processing time of requests by method and status\n");
+        w.write("# TYPE webdav_request_seconds summary\n");
+        for (Map.Entry<RequestKey, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            String labels = "method=\"" + entry.getKey().method + "\",status=\"" + entry.getKey().status + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                w.write("webdav_request_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+                        + seconds(histogram.getQuantileMicros(quantile)) + "\n");
+            }
+            w.write("webdav_request_seconds_sum{" + labels + "} " + seconds(histogram.getSumMicros()) + "\n");
+            w.write("webdav_request_seconds_count{" + labels + "} " + histogram.getCount() + "\n");
+        }
+
+        writeSample(w, "webdav_requests_active", "gauge", "Requests in flight", getActiveRequests());
+        writeSample(w, "webdav_transfers_active", "gauge", "GET and PUT requests in flight", getActiveTransfers());
+        writeSample(w, "webdav_received_bytes_total", "counter", "Bytes of request bodies", getBytesReceived());
+        writeSample(w, "webdav_sent_bytes_total", "counter", "Bytes of responses", getBytesSent());
+        writeSample(w, "webdav_rejected_requests_total", "counter",
+                "Requests answered with 503 by the admission control", getRejectedRequests());
+
+        w.write("# HELP webdav_filesystem_calls_total Calls to the file system by the resources\n");
+        w.write("# TYPE webdav_filesystem_calls_total counter\n");
+        for (FileSystemCall call : FileSystemCall.values()) {
+            w.write("webdav_filesystem_calls_total{call=\"" + call.name().toLowerCase(Locale.ROOT) + "\"} "
+                    + fileSystemCalls[call.ordinal()].sum() + "\n");
+        }
+    }
+
+    /**
+     * Writes a single sample without labels in the Prometheus text format.
+     *
+     * @param w     the writer to write to
+     * @param name  the name of the metric
+     * @param type  the Prometheus type of the metric, e.g. {@code counter}
+     * @param help  the description of the metric
+     * @param value the value of the metric
+     * @throws IOException if writing fails
+     */
+    public static void writeSample(Writer w, String name, String type, String help, double value) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " " + type + "\n");
+        w.write(name + " " + (value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value))
+                + "\n");
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private static String normalize(String method) {
+        // limits the number of histograms, whatever methods clients send
+        return METHODS.contains(method) ? method : "OTHER";
+    }
+
+    private static boolean isTransfer(String method) {
+        return "GET".equals(method) || "PUT".equals(method);
+    }
+
+    /**
+     * The method and status of requests.
+     */
+    private static final class RequestKey implements Comparable<RequestKey> {
+
+        private final String method;
+        private final int status;
+
+        private RequestKey(String method, int status) {
+            this.method = method;
+            this.status = status;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) o;
+            return status == other.status && method.equals(other.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * method.hashCode() + status;
+        }
+
+        @Override
+        public int compareTo(RequestKey other) {
+            int result = method.compareTo(other.method);
+            return result != 0 ? result : Integer.compare(status, other.status);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + status;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link ServerMetrics}. Maps are keyed by {@code METHOD STATUS}, e.g. {@code PROPFIND 207}.
+ */
+public interface ServerMetricsMXBean {
+
+    long getRequestCount();
+
+    int getActiveRequests();
+
+    int getActiveTransfers();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getRejectedRequests();
+
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Double> getMeanLatencyMillis();
+
+    Map<String, Double> getP99LatencyMillis();
+
+    Map<String, Long> getFileSystemCalls();
+
+    /**
+     * @return number of files copied on the server by {@link CopyStrategy}
+     */
+    Map<String, Long> getCopyCounts();
+
+    /**
+     * @return the progress of the running recursive copies and deletes of the {@link ParallelTreeEngine}
+     */
+    List<String> getRunningTreeOperations();
+
+    long getCompletedTreeOperations();
+
+    /**
+     * @return number of folders processed by the completed tree operations
+     */
+    long getTreeOperationFolders();
+
+    /**
+     * @return number of files processed by the completed tree operations
+     */
+    long getTreeOperationFiles();
+
+    /**
+     * @return number of bytes of the files processed by the completed tree operations
+     */
+    long getTreeOperationBytes();
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers {@code PROPFIND} requests with {@code Depth: 1} on folders by writing the multistatus response incrementally
+ * while the folder is enumerated, instead of letting milton build the complete response in memory first. Memory usage
+ * therefore stays flat regardless of the folder's size and clients receive the first entries right away.
+ * <p>
+ * Only requests for the standard live properties, the quota properties and the sync token are streamed. Every other
+ * request (other properties, other depths, {@code propname}, missing or invalid credentials) is left to milton.
+ */
+public class StreamingPropFindHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingPropFindHandler.class);
+
+    private static final String DAV_NS = "DAV:";
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+    private static final int FLUSH_INTERVAL = 256;
+    private static final List<String> SUPPORTED_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            "displayname", "resourcetype", "getcontentlength", "getcontenttype", "getlastmodified", "creationdate",
+            "getetag"));
+    /**
+     * The quota properties of RFC 4331 and the sync token of RFC 6578, which are only returned if requested
+     * explicitly.
+     */
+    private static final List<String> EXPLICIT_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            "quota-used-bytes", "quota-available-bytes", "sync-token"));
+    private static final DateTimeFormatter LAST_MODIFIED_FORMAT = DateTimeFormatter.RFC_1123_DATE_TIME
+            .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter CREATION_DATE_FORMAT = DateTimeFormatter.ISO_INSTANT;
+
+    private final MiltonWebDAVResourceFactory resourceFactory;
+
+    public StreamingPropFindHandler(MiltonWebDAVResourceFactory resourceFactory) {
+        this.resourceFactory = resourceFactory;
+    }
+
+    /**
+     * Checks cheaply, without reading the request body, if the request might be streamed.
+     *
+     * @param request the request to check
+     * @return {@code true} if the request is a {@code PROPFIND} with {@code Depth: 1} and a small body or a body of
+     * unknown length, e.g. a chunked or an HTTP/2 one
+     */
+    public boolean isCandidate(HttpServletRequest request) {
+        if (!"PROPFIND".equals(request.getMethod()) || !"1".equals(trim(request.getHeader("Depth")))) {
+            return false;
+        }
+        return request.getContentLengthLong() <= MAX_BODY_SIZE;
+    }
+
+    /**
+     * Reads the (small) body of a {@link #isCandidate(HttpServletRequest) candidate} request. A body of unknown length
+     * is read up to one byte more than the accepted size, so {@link #isTooLarge(byte[])} tells if it has been read
+     * completely.
+     *
+     * @param request the candidate request
+     * @return the request body or its beginning; empty if the request has none
+     * @throws IOException if reading the body fails
+     */
+    public byte[] readBody(HttpServletRequest request) throws IOException {
+        long contentLength = request.getContentLengthLong();
+        if (contentLength == 0) {
+            return new byte[0];
+        } else if (contentLength > 0) {
+            return IOUtils.toByteArray(request.getInputStream(), contentLength);
+        }
+        byte[] buffer = new byte[MAX_BODY_SIZE + 1];
+        int read = IOUtils.read(request.getInputStream(), buffer);
+        return Arrays.copyOf(buffer, read);
+    }
+
+    /**
+     * @param body a body as returned by {@link #readBody(HttpServletRequest)}
+     * @return {@code true} if the body is too large to be handled here and only its beginning has been read
+     */
+    static boolean isTooLarge(byte[] body) {
+        return body.length > MAX_BODY_SIZE;
+    }
+
+    /**
+     * Wraps the request to replay an already consumed body, or its beginning followed by the rest, to milton.
+     *
+     * @param request the original request
+     * @param body    the already consumed body
+     * @return a request returning the given body
+     */
+    public HttpServletRequest replayBody(HttpServletRequest request, byte[] body) {
+        return new BufferedBodyRequest(request, body);
+    }
+
+    /**
+     * Streams the response to the given {@link #isCandidate(HttpServletRequest) candidate} request if possible.
+     *
+     * @param request  the candidate request
+     * @param body     the request's body as returned by {@link #readBody(HttpServletRequest)}
+     * @param response the response to write to
+     * @return {@code true} if the response has been written, {@code false} if the request has to be handled by milton
+     * @throws IOException if writing the response fails
+     */
+    public boolean handle(HttpServletRequest request, byte[] body, HttpServletResponse response) throws IOException {
+        if (isTooLarge(body)) {
+            return false;
+        }
+        Set<String> properties = parseRequestedProperties(body);
+        if (properties == null
+                || !HttpRequests.isAuthenticated(request, resourceFactory.getSecurityManager())) {
+            return false;
+        }
+
+        String path = HttpRequests.decodePath(request);
+        if (path == null) {
+            return false;
+        }
+
+        File folder = new File(resourceFactory.getRootFolder(), path);
+        FileAttributes folderAttributes = resourceFactory.getAttributeCache().get(folder);
+        if (!folderAttributes.isDirectory()) {
+            return false;
+        }
+
+        LOGGER.debug("Streaming PROPFIND response for {}", folder);
+
+        String folderHref = request.getRequestURI().endsWith("/") ? request.getRequestURI()
+                : request.getRequestURI() + "/";
+
+        response.setStatus(207);
+        response.setContentType("application/xml; charset=utf-8");
+        Writer w = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:multistatus xmlns:d=\"DAV:\">\n");
+        writeResponse(w, folderHref, folder, folderAttributes, properties);
+
+        int written = 0;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(folder.toPath())) {
+            for (Path childPath : children) {
+                if (AtomicFileWriter.isTemporaryFile(childPath)) {
+                    continue;
+                }
+                File child = childPath.toFile();
+                FileAttributes childAttributes = readAttributes(childPath);
+                String childHref = folderHref + encodeSegment(child.getName())
+                        + (childAttributes.isDirectory() ? "/" : "");
+                writeResponse(w, childHref, child, childAttributes, properties);
+
+                if (++written % FLUSH_INTERVAL == 0) {
+                    w.flush();
+                }
+            }
+        }
+
+        w.write("</d:multistatus>\n");
+        w.flush();
+        return true;
+    }
+
+    /**
+     * Writes the {@code response} element with the given properties of a file or folder.
+     */
+    void writeResponse(Writer w, String href, File file, FileAttributes attributes, Set<String> properties)
+            throws IOException {
+        StringBuilder found = new StringBuilder();
+        StringBuilder missing = new StringBuilder();
+
+        for (String property : properties) {
+            String value = propertyValue(property, file, attributes);
+            if (value == null) {
+                missing.append("<d:").append(property).append("/>");
+            } else if (value.isEmpty()) {
+                found.append("<d:").append(property).append("/>");
+            } else {
+                found.append("<d:").append(property).append('>').append(value).append("</d:").append(property)
+                        .append('>');
+            }
+        }
+
+        w.write("<d:response><d:href>");
+        w.write(escape(href));
+        w.write("</d:href>");
+        if (found.length() > 0) {
+            w.write("<d:propstat><d:prop>");
+            w.write(found.toString());
+            w.write("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>");
+        }
+        if (missing.length() > 0) {
+            w.write("<d:propstat><d:prop>");
+            w.write(missing.toString());
+            w.write("</d:prop><d:status>HTTP/1.1 404 Not Found</d:status></d:propstat>");
+        }
+        w.write("</d:response>\n");
+    }
+
+    private String propertyValue(String property, File file, FileAttributes attributes) {
+        switch (property) {
+            case "displayname":
+                return escape(file.getName());
+            case "resourcetype":
+                return attributes.isDirectory() ? "<d:collection/>" : "";
+            case "getcontentlength":
+                return attributes.isDirectory() ? null : Long.toString(attributes.getSize());
+            case "getcontenttype":
+                return attributes.isDirectory() ? null : contentType(file, attributes);
+            case "getlastmodified":
+                return LAST_MODIFIED_FORMAT.format(Instant.ofEpochMilli(attributes.getLastModified()));
+            case "creationdate":
+                return CREATION_DATE_FORMAT.format(Instant.ofEpochMilli(attributes.getCreationTime()));
+            case "getetag":
+                return attributes.getETag() == null ? null : "&quot;" + attributes.getETag() + "&quot;";
+            case "quota-used-bytes":
+                return attributes.isDirectory() ? quotaUsed(file) : null;
+            case "quota-available-bytes":
+                return attributes.isDirectory() ? quotaAvailable() : null;
+            case "sync-token":
+                return attributes.isDirectory() && resourceFactory.getChangeJournal().isEnabled()
+                        ? escape(resourceFactory.getChangeJournal().getSyncToken()) : null;
+            default:
+                return null;
+        }
+    }
+
+    private String contentType(File file, FileAttributes attributes) {
+        String contentType = resourceFactory.getContentTypeResolver().getContentType(file, attributes, null);
+        return contentType == null ? null : escape(contentType);
+    }
+
+    private String quotaUsed(File folder) {
+        FolderSizeIndex.Usage usage = resourceFactory.getFolderSizeIndex().getUsage(folder);
+        return usage == null ? null : Long.toString(usage.getBytes());
+    }
+
+    private String quotaAvailable() {
+        FolderSizeIndex folderSizeIndex = resourceFactory.getFolderSizeIndex();
+        Long available = folderSizeIndex.isEnabled() ? folderSizeIndex.getAvailableBytes() : null;
+        return available == null ? null : Long.toString(available);
+    }
+
+    /**
+     * Reads the attributes of a file or folder and puts them into the attribute cache.
+     */
+    FileAttributes readAttributes(Path path) {
+        try {
+            FileAttributes attributes = FileAttributes.of(Files.readAttributes(path, BasicFileAttributes.class));
+            resourceFactory.getAttributeCache().put(path.toFile(), attributes);
+            return attributes;
+        } catch (IOException e) {
+            LOGGER.debug("Could not read attributes of {}", path, e);
+            return FileAttributes.missing();
+        }
+    }
+
+    /**
+     * @return the requested properties or {@code null} if the request cannot be streamed
+     */
+    private static Set<String> parseRequestedProperties(byte[] body) {
+        if (body.length == 0) {
+            return new LinkedHashSet<>(SUPPORTED_PROPERTIES);
+        }
+
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(new ByteArrayInputStream(body));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            LOGGER.debug("Could not parse PROPFIND body, leaving request to milton", e);
+            return null;
+        }
+
+        Element root = document.getDocumentElement();
+        if (!isDav(root, "propfind")) {
+            return null;
+        }
+
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if (isDav(node, "allprop")) {
+                return new LinkedHashSet<>(SUPPORTED_PROPERTIES);
+            }
+            if (isDav(node, "prop")) {
+                return parseProp(node);
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static Set<String> parseProp(Node prop) {
+        Set<String> result = new LinkedHashSet<>();
+        for (Node node = prop.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if (!isSupportedProperty(node)) {
+                return null;
+            }
+            result.add(node.getLocalName());
+        }
+        return result;
+    }
+
+    /**
+     * @param property a property element
+     * @return if the property is one of the standard live properties, the quota properties or the sync token
+     */
+    static boolean isSupportedProperty(Node property) {
+        return DAV_NS.equals(property.getNamespaceURI()) && (SUPPORTED_PROPERTIES.contains(property.getLocalName())
+                || EXPLICIT_PROPERTIES.contains(property.getLocalName()));
+    }
+
+    static boolean isDav(Node node, String localName) {
+        return DAV_NS.equals(node.getNamespaceURI()) && localName.equals(node.getLocalName());
+    }
+
+    static String encodeSegment(String name) {
+        try {
+            // the ASCII string also encodes non-ASCII characters as UTF-8, like milton does, unlike the raw path
+            return new URI(null, null, name, null).toASCIIString().replace("/", "%2F").replace(":", "%3A");
+        } catch (URISyntaxException e) { //NOSONAR
+            return name;
+        }
+    }
+
+    static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    /**
+     * A request returning an already consumed body.
+     */
+    /**
+     * A request replaying an already consumed body. Like the original request, it returns the same stream and reader on
+     * every call, so the body is read only once.
+     */
+    private static final class BufferedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+        private ReplayedInputStream inputStream = null;
+        private BufferedReader reader = null;
+
+        private BufferedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                // the original stream is at its end unless only the beginning of a body of unknown length was read
+                inputStream = new ReplayedInputStream(new SequenceInputStream(new ByteArrayInputStream(body),
+                        super.getInputStream()));
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(),
+                        encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding)));
+            }
+            return reader;
+        }
+    }
+
+    private static final class ReplayedInputStream extends ServletInputStream {
+        private final InputStream in;
+        private boolean finished = false;
+
+        private ReplayedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * The body is already in memory, so the listener is called right away and can read all of it.
+         */
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                if (!finished) {
+                    readListener.onDataAvailable();
+                }
+                if (finished) {
+                    readListener.onAllDataRead();
+                }
+            } catch (IOException e) {
+                readListener.onError(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = in.read();
+            finished = read < 0;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            finished = read < 0;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers {@code sync-collection} reports (RFC 6578) on folders from the {@link ChangeJournal}: a request without sync
+ * token returns all members of the folder, a request with the token of an earlier response returns only the members
+ * changed or deleted since then. Responses are streamed like those of the {@link StreamingPropFindHandler}.
+ * <p>
+ * If the journal cannot tell the changes since a token, e.g. because they have been evicted or the folder itself has
+ * been replaced, the request is rejected with the {@code DAV:valid-sync-token} precondition, so the client syncs from
+ * scratch. Every other {@code REPORT} is left to milton.
+ */
+public class SyncCollectionReportHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncCollectionReportHandler.class);
+
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+    private static final int FLUSH_INTERVAL = 256;
+    private static final Set<String> DEFAULT_PROPERTIES = Collections.unmodifiableSet(new LinkedHashSet<>(
+            Arrays.asList("getetag", "getlastmodified", "getcontentlength", "resourcetype")));
+
+    private final MiltonWebDAVResourceFactory resourceFactory;
+    private final StreamingPropFindHandler propFindHandler;
+
+    public SyncCollectionReportHandler(MiltonWebDAVResourceFactory resourceFactory) {
+        this.resourceFactory = resourceFactory;
+        this.propFindHandler = new StreamingPropFindHandler(resourceFactory);
+    }
+
+    /**
+     * Checks cheaply, without reading the request body, if the request might be a {@code sync-collection} report.
+     *
+     * @param request the request to check
+     * @return {@code true} if the request is a {@code REPORT} with a small body or a body of unknown length and the
+     * change journal is enabled
+     */
+    public boolean isCandidate(HttpServletRequest request) {
+        if (!"REPORT".equals(request.getMethod()) || !resourceFactory.getChangeJournal().isEnabled()) {
+            return false;
+        }
+        return request.getContentLengthLong() <= MAX_BODY_SIZE;
+    }
+
+    /**
+     * Reads the (small) body of a {@link #isCandidate(HttpServletRequest) candidate} request.
+     *
+     * @param request the candidate request
+     * @return the request body; empty if the request has none
+     * @throws IOException if reading the body fails
+     */
+    public byte[] readBody(HttpServletRequest request) throws IOException {
+        return propFindHandler.readBody(request);
+    }
+
+    /**
+     * Wraps the request to replay an already consumed body to milton.
+     *
+     * @param request the original request
+     * @param body    the already consumed body
+     * @return a request returning the given body
+     */
+    public HttpServletRequest replayBody(HttpServletRequest request, byte[] body) {
+        return propFindHandler.replayBody(request, body);
+    }
+
+    /**
+     * Answers the given {@link #isCandidate(HttpServletRequest) candidate} request if it is a {@code sync-collection}
+     * report on a folder.
+     *
+     * @param request  the candidate request
+     * @param body     the request's body as returned by {@link #readBody(HttpServletRequest)}
+     * @param response the response to write to
+     * @return {@code true} if the response has been written, {@code false} if the request has to be handled by milton
+     * @throws IOException if writing the response fails
+     */
+    public boolean handle(HttpServletRequest request, byte[] body, HttpServletResponse response) throws IOException {
+        if (StreamingPropFindHandler.isTooLarge(body)) {
+            return false;
+        }
+        SyncRequest syncRequest = parseSyncRequest(body);
+        if (syncRequest == null
+                || !HttpRequests.isAuthenticated(request, resourceFactory.getSecurityManager())) {
+            return false;
+        }
+
+        String path = HttpRequests.decodePath(request);
+        if (path == null) {
+            return false;
+        }
+
+        File folder = new File(resourceFactory.getRootFolder(), path);
+        if (!resourceFactory.getAttributeCache().get(folder).isDirectory()) {
+            return false;
+        }
+
+        if (syncRequest.level == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported sync-level");
+            return true;
+        }
+
+        // the token is taken before the changes are read, so changes in between are reported again by the next sync
+        ChangeJournal changeJournal = resourceFactory.getChangeJournal();
+        String syncToken = changeJournal.getSyncToken();
+        String collection = changeJournal.relativePath(folder);
+        List<ChangeJournal.Change> changes = null;
+        if (!syncRequest.syncToken.isEmpty()) {
+            long since = changeJournal.parseSyncToken(syncRequest.syncToken);
+            changes = since < 0 ? null : changeJournal.getChanges(collection, syncRequest.infinite, since);
+            if (changes == null) {
+                LOGGER.debug("Rejecting sync token {} for {}", syncRequest.syncToken, folder);
+                writeInvalidSyncToken(response);
+                return true;
+            }
+        }
+
+        LOGGER.debug("Answering sync-collection report for {} with {} changes", folder,
+                changes == null ? "all" : changes.size());
+
+        String folderHref = request.getRequestURI().endsWith("/") ? request.getRequestURI()
+                : request.getRequestURI() + "/";
+
+        response.setStatus(207);
+        response.setContentType("application/xml; charset=utf-8");
+        Writer w = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:multistatus xmlns:d=\"DAV:\">\n");
+        MemberWriter members = new MemberWriter(w, folder.toPath(), folderHref, syncRequest.properties);
+        if (changes == null) {
+            members.writeAll(folder.toPath(), syncRequest.infinite);
+        } else {
+            for (ChangeJournal.Change change : changes) {
+                members.writeChange(change, syncRequest.infinite);
+            }
+        }
+        w.write("<d:sync-token>");
+        w.write(StreamingPropFindHandler.escape(syncToken));
+        w.write("</d:sync-token>\n</d:multistatus>\n");
+        w.flush();
+        return true;
+    }
+
+    private static void writeInvalidSyncToken(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        response.setContentType("application/xml; charset=utf-8");
+        Writer w = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        w.write("<d:error xmlns:d=\"DAV:\"><d:valid-sync-token/></d:error>\n");
+        w.flush();
+    }
+
+    /**
+     * @return the parsed request or {@code null} if the body is no {@code sync-collection} report
+     */
+    private static SyncRequest parseSyncRequest(byte[] body) {
+        if (body.length == 0) {
+            return null;
+        }
+
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(new ByteArrayInputStream(body));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            LOGGER.debug("Could not parse REPORT body, leaving request to milton", e);
+            return null;
+        }
+
+        Element root = document.getDocumentElement();
+        if (!StreamingPropFindHandler.isDav(root, "sync-collection")) {
+            return null;
+        }
+
+        SyncRequest syncRequest = new SyncRequest();
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (StreamingPropFindHandler.isDav(node, "sync-token")) {
+                syncRequest.syncToken = node.getTextContent().trim();
+            } else if (StreamingPropFindHandler.isDav(node, "sync-level")) {
+                String level = node.getTextContent().trim();
+                syncRequest.level = level;
+                syncRequest.infinite = "infinite".equals(level);
+                if (!"1".equals(level) && !syncRequest.infinite) {
+                    syncRequest.level = null;
+                }
+            } else if (StreamingPropFindHandler.isDav(node, "prop")) {
+                syncRequest.properties = parseProp(node);
+            }
+        }
+        return syncRequest;
+    }
+
+    /**
+     * @return the requested properties, ignoring those that are not supported
+     */
+    private static Set<String> parseProp(Node prop) {
+        Set<String> result = new LinkedHashSet<>();
+        for (Node node = prop.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && StreamingPropFindHandler.isSupportedProperty(node)) {
+                result.add(node.getLocalName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The parameters of a {@code sync-collection} report.
+     */
+    private static final class SyncRequest {
+        private String syncToken = "";
+        private String level = "1";
+        private boolean infinite = false;
+        private Set<String> properties = DEFAULT_PROPERTIES;
+    }
+
+    /**
+     * Writes the {@code response} elements of the members of the requested folder, each member at most once.
+     */
+    private final class MemberWriter {
+        private final Writer w;
+        private final Path folder;
+        private final String folderHref;
+        private final Set<String> properties;
+        private final Set<Path> written = new HashSet<>();
+
+        private MemberWriter(Writer w, Path folder, String folderHref, Set<String> properties) {
+            this.w = w;
+            this.folder = folder;
+            this.folderHref = folderHref;
+            this.properties = properties;
+        }
+
+        private void writeChange(ChangeJournal.Change change, boolean infinite) throws IOException {
+            Path member = resourceFactory.getRootFolder().toPath().resolve(change.getPath());
+            if (change.getType() == ChangeJournal.ChangeType.DELETED) {
+                writeDeleted(member);
+                return;
+            }
+
+            FileAttributes attributes = propFindHandler.readAttributes(member);
+            if (!attributes.exists()) {
+                writeDeleted(member);
+            } else {
+                writeMember(member, attributes);
+                if (infinite && attributes.isDirectory()
+                        && change.getType() == ChangeJournal.ChangeType.TREE_CHANGED) {
+                    writeAll(member, true);
+                }
+            }
+        }
+
+        private void writeAll(Path parent, boolean infinite) throws IOException {
+            if (!infinite) {
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(parent)) {
+                    for (Path child : children) {
+                        if (!AtomicFileWriter.isTemporaryFile(child)) {
+                            writeMember(child, propFindHandler.readAttributes(child));
+                        }
+                    }
+                }
+                return;
+            }
+
+            Files.walkFileTree(parent, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(parent)) {
+                        writeMember(dir, cache(dir, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!AtomicFileWriter.isTemporaryFile(file)) {
+                        writeMember(file, cache(file, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    LOGGER.debug("Could not read {} for sync-collection report", file, exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private FileAttributes cache(Path path, BasicFileAttributes attrs) {
+            FileAttributes attributes = FileAttributes.of(attrs);
+            resourceFactory.getAttributeCache().put(path.toFile(), attributes);
+            return attributes;
+        }
+
+        private void writeMember(Path member, FileAttributes attributes) throws IOException {
+            if (!written.add(member)) {
+                return;
+            }
+            String href = href(member) + (attributes.isDirectory() ? "/" : "");
+            propFindHandler.writeResponse(w, href, member.toFile(), attributes, properties);
+            flushPeriodically();
+        }
+
+        private void writeDeleted(Path member) throws IOException {
+            if (!written.add(member)) {
+                return;
+            }
+            w.write("<d:response><d:href>");
+            w.write(StreamingPropFindHandler.escape(href(member)));
+            w.write("</d:href><d:status>HTTP/1.1 404 Not Found</d:status></d:response>\n");
+            flushPeriodically();
+        }
+
+        private String href(Path member) {
+            StringBuilder href = new StringBuilder(folderHref);
+            for (Path segment : folder.relativize(member)) {
+                if (href.charAt(href.length() - 1) != '/') {
+                    href.append('/');
+                }
+                href.append(StreamingPropFindHandler.encodeSegment(segment.toString()));
+            }
+            return href.toString();
+        }
+
+        private void flushPeriodically() throws IOException {
+            if (written.size() % FLUSH_INTERVAL == 0) {
+                w.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import static org.apache.commons.lang3.Validate.*;
+
+/**
+ * A token bucket limiting a byte rate. Instead of blocking, {@link #reserve(long)} takes the tokens immediately and
+ * returns how long the caller has to wait before using them, so callers may wait without holding a thread. The
+ * bucket holds up to one second of tokens, which allows short bursts.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+    /**
+     * The time at which all tokens taken so far are available; up to one second in the past if the bucket is full.
+     */
+    private long availableAt;
+
+    /**
+     * @param bytesPerSecond the rate tokens are added to the bucket at
+     */
+    public TokenBucket(long bytesPerSecond) {
+        isTrue(bytesPerSecond > 0, "'bytesPerSecond' must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.availableAt = System.nanoTime() - NANOS_PER_SECOND;
+    }
+
+    /**
+     * Takes tokens from the bucket, possibly more than it currently holds.
+     *
+     * @param bytes the number of tokens to take
+     * @return the nanoseconds to wait until the tokens are available, {@code 0} if they are available now
+     */
+    public synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        availableAt = Math.max(availableAt, now - NANOS_PER_SECOND);
+        availableAt += (long) (bytes * (double) NANOS_PER_SECOND / bytesPerSecond);
+        return Math.max(0, availableAt - now);
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a single recursive operation of the {@link ParallelTreeEngine}.
+ */
+public class TreeOperation {
+
+    /**
+     * The kind of a tree operation.
+     */
+    public enum Type {
+        COPY, DELETE
+    }
+
+    private final Type type;
+    private final File root;
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong folders = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    TreeOperation(Type type, File root) {
+        this.type = type;
+        this.root = root;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the root of the tree that is processed
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return start of the operation in milliseconds since the epoch
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return number of files processed so far
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return number of folders processed so far
+     */
+    public long getFolders() {
+        return folders.get();
+    }
+
+    /**
+     * @return number of bytes of the files processed so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    void fileDone(long size) {
+        files.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    void folderDone() {
+        folders.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + root + ": " + getFolders() + " folders, " + getFiles() + " files, " + getBytes()
+                + " bytes in " + (System.currentTimeMillis() - startedAt) + " ms";
+    }
+}
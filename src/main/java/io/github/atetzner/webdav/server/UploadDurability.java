@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+/**
+ * How durable an upload is, once the server answered the request.
+ */
+public enum UploadDurability {
+    /**
+     * The upload is handed to the operating system; it may be lost on a crash of the OS or a power failure.
+     */
+    NONE,
+    /**
+     * The uploaded file's content is synced to the storage device before it replaces the target file.
+     */
+    FILE,
+    /**
+     * Like {@link #FILE}, additionally the folder is synced after the rename, so the new file name survives a crash as
+     * well.
+     */
+    FILE_AND_FOLDER
+}
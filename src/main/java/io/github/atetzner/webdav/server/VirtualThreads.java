@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which are looked up reflectively so the server still compiles and runs on JVMs without
+ * virtual thread support.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return {@code true} if the running JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        ExecutorService executor = newExecutorOrNull();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task.
+     *
+     * @return the new executor or {@code null} if the running JVM does not support virtual threads
+     */
+    public static ExecutorService newExecutorOrNull() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            LOGGER.debug("Virtual threads are not available in this JVM", e);
+            return null;
+        } catch (InvocationTargetException e) {
+            // e.g. a JVM with virtual threads as preview feature, that has not been enabled
+            LOGGER.debug("Virtual threads are not enabled in this JVM", e.getCause());
+            return null;
+        }
+    }
+}
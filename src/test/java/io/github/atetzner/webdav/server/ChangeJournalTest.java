@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.atetzner.webdav.server;
+
+import io.github.atetzner.webdav.server.ChangeJournal.Change;
+import io.github.atetzner.webdav.server.ChangeJournal.ChangeType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChangeJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File root;
+    private ChangeJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        root = temporaryFolder.newFolder("root");
+        journal = open(ChangeJournal.DEFAULT_MAX_ENTRIES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+    }
+
+    @Test
+    public void deletedAfterChangedIsDeleted() {
+        long since = tokenSequence();
+        journal.recordChanged(new File(root, "a.txt"));
+        journal.recordDeleted(new File(root, "a.txt"));
+
+        assertSingleChange("", since, "a.txt", ChangeType.DELETED);
+    }
+
+    @Test
+    public void changedAfterDeletedIsReplaced() {
+        long since = tokenSequence();
+        journal.recordDeleted(new File(root, "a"));
+        journal.recordChanged(new File(root, "a"));
+
+        assertSingleChange("", since, "a", ChangeType.REPLACED);
+    }
+
+    @Test
+    public void changedAfterTreeChangedStaysTreeChanged() {
+        long since = tokenSequence();
+        journal.recordTreeChanged(new File(root, "a"));
+        journal.recordChanged(new File(root, "a"));
+
+        assertSingleChange("", since, "a", ChangeType.TREE_CHANGED);
+    }
+
+    @Test
+    public void mergedChangeMovesToTheEnd() {
+        long since = tokenSequence();
+        journal.recordChanged(new File(root, "a.txt"));
+        journal.recordChanged(new File(root, "b.txt"));
+        journal.recordChanged(new File(root, "a.txt"));
+
+        List<Change> changes = journal.getChanges("", false, since);
+        assertEquals(2, changes.size());
+        assertEquals("b.txt", changes.get(0).getPath());
+        assertEquals("a.txt", changes.get(1).getPath());
+    }
+
+    @Test
+    public void replacedFolderRequiresFullSync() {
+        long since = tokenSequence();
+        journal.recordDeleted(new File(root, "a"));
+        journal.recordChanged(new File(root, "a"));
+
+        assertNull(journal.getChanges("", true, since));
+        assertNull(journal.getChanges("a", false, since));
+    }
+
+    @Test
+    public void evictsOldestChanges() throws IOException {
+        journal.close();
+        journal = open(2);
+        String token = journal.getSyncToken();
+        journal.recordChanged(new File(root, "a.txt"));
+        String afterFirst = journal.getSyncToken();
+        journal.recordChanged(new File(root, "b.txt"));
+        journal.recordChanged(new File(root, "c.txt"));
+
+        assertEquals(2, journal.size());
+        assertEquals(-1, journal.parseSyncToken(token));
+        long since = journal.parseSyncToken(afterFirst);
+        assertEquals(1, since);
+        List<Change> changes = journal.getChanges("", false, since);
+        assertEquals(2, changes.size());
+        assertEquals("b.txt", changes.get(0).getPath());
+        assertEquals("c.txt", changes.get(1).getPath());
+    }
+
+    @Test
+    public void rejectsForeignTokens() {
+        assertEquals(-1, journal.parseSyncToken(null));
+        assertEquals(-1, journal.parseSyncToken("urn:x-webdav-sync:other:0"));
+        assertEquals(-1, journal.parseSyncToken(journal.getSyncToken() + "1"));
+    }
+
+    private ChangeJournal open(int maxEntries) throws IOException {
+        ChangeJournal opened = new ChangeJournal(root, null, maxEntries);
+        opened.open(folder -> true);
+        return opened;
+    }
+
+    private long tokenSequence() {
+        return journal.parseSyncToken(journal.getSyncToken());
+    }
+
+    private void assertSingleChange(String collection, long since, String path, ChangeType type) {
+        List<Change> changes = journal.getChanges(collection, false, since);
+        assertEquals(1, changes.size());
+        assertEquals(path, changes.get(0).getPath());
+        assertEquals(type, changes.get(0).getType());
+    }
+}
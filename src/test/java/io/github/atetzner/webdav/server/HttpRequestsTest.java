@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.atetzner.webdav.server;
+
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestsTest {
+
+    @Test
+    public void decodesPercentEncodedPath() {
+        assertEquals("/folder/a b.txt", HttpRequests.decodePath(request("/folder/a%20b.txt")));
+        assertEquals("/\u00e4\u00f6\u00fc", HttpRequests.decodePath(request("/%C3%A4%C3%B6%C3%BC")));
+        assertEquals("/100%", HttpRequests.decodePath(request("/100%25")));
+    }
+
+    @Test
+    public void keepsUnencodedPath() {
+        assertEquals("/", HttpRequests.decodePath(request("/")));
+        assertEquals("/folder/file.txt", HttpRequests.decodePath(request("/folder/file.txt")));
+    }
+
+    @Test
+    public void rejectsInvalidUri() {
+        assertNull(HttpRequests.decodePath(request("/a b")));
+        assertNull(HttpRequests.decodePath(request("/100%")));
+    }
+
+    /**
+     * @return a request, that only answers {@link HttpServletRequest#getRequestURI()}
+     */
+    private static HttpServletRequest request(String requestUri) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpRequestsTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getRequestURI")) {
+                        return requestUri;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
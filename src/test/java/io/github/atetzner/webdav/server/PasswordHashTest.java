@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.atetzner.webdav.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PasswordHashTest {
+
+    @Test
+    public void matchesHashedPassword() {
+        PasswordHash hash = PasswordHash.create("secret".toCharArray());
+
+        assertTrue(hash.matches("secret"));
+        assertFalse(hash.matches("Secret"));
+        assertFalse(hash.matches(""));
+        assertFalse(hash.matches(null));
+    }
+
+    @Test
+    public void parsesEncodedForm() {
+        PasswordHash hash = PasswordHash.create("secret".toCharArray());
+
+        PasswordHash parsed = PasswordHash.parse(hash.toString());
+
+        assertEquals(hash.toString(), parsed.toString());
+        assertTrue(parsed.matches("secret"));
+        assertTrue(hash.toString().startsWith("pbkdf2-sha256$" + PasswordHash.DEFAULT_ITERATIONS + "$"));
+    }
+
+    @Test
+    public void saltsEveryHash() {
+        assertNotEquals(PasswordHash.create("secret".toCharArray()).toString(),
+                PasswordHash.create("secret".toCharArray()).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherAlgorithms() {
+        PasswordHash.parse("bcrypt$10$c2FsdA==$aGFzaA==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingParts() {
+        PasswordHash.parse("pbkdf2-sha256$10$c2FsdA==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveIterations() {
+        PasswordHash.parse("pbkdf2-sha256$0$c2FsdA==$aGFzaA==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedIterations() {
+        PasswordHash.parse("pbkdf2-sha256$ten$c2FsdA==$aGFzaA==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptySalt() {
+        PasswordHash.parse("pbkdf2-sha256$10$$aGFzaA==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyHash() {
+        PasswordHash.parse("pbkdf2-sha256$10$c2FsdA==$");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedBase64() {
+        PasswordHash.parse("pbkdf2-sha256$10$not base64$aGFzaA==");
+    }
+}
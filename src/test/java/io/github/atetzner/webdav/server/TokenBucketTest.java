@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 the original author or authors.
+ * See the NOTICE.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.atetzner.webdav.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsBurstOfOneSecond() {
+        TokenBucket bucket = new TokenBucket(1000);
+
+        assertEquals(0, bucket.reserve(400));
+        assertEquals(0, bucket.reserve(600));
+    }
+
+    @Test
+    public void delaysBeyondBurst() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+
+        long delay = bucket.reserve(500);
+
+        assertTrue("delay " + delay, delay > ONE_SECOND / 4 && delay <= ONE_SECOND / 2);
+    }
+
+    @Test
+    public void accumulatesReservations() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+
+        long first = bucket.reserve(1000);
+        long second = bucket.reserve(1000);
+
+        assertTrue("first " + first + ", second " + second, second > first && second <= 2 * ONE_SECOND);
+        assertTrue("second " + second, second > ONE_SECOND);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveRate() {
+        new TokenBucket(0);
+    }
+}